@@ -3,20 +3,35 @@ package com.examensarbete;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import java.io.IOException;
-import java.io.InputStream;
-import java.net.URI;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.io.UncheckedIOException;
 import java.net.http.HttpClient;
 import java.net.http.HttpRequest;
 import java.net.http.HttpResponse;
+import java.net.http.HttpTimeoutException;
+import java.time.Duration;
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.Properties;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 public class AIClient {
     private static final ObjectMapper JSON_MAPPER = new ObjectMapper();
-    private static final Properties API_KEYS = loadApiKeys();
+    private static final HttpClient HTTP_CLIENT = HttpClient.newHttpClient();
+    private static final int PIPE_SIZE = 64 * 1024;
+    private static final ExecutorService BODY_WRITERS = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "request-body-writer");
+        thread.setDaemon(true);
+        return thread;
+    });
     
     // Enhanced regex with flexible whitespace handling
     private static final Pattern BUG_BLOCK_PATTERN = Pattern.compile(
@@ -27,58 +42,155 @@ public class AIClient {
         "CORRECTED\\s+CODE:\\s*```java\\s*([\\s\\S]*?)```",
         Pattern.CASE_INSENSITIVE | Pattern.DOTALL
     );
+    private static final Pattern COMPLETE_FILE_PATTERN = Pattern.compile(
+        "COMPLETE\\s+FILE:[ \\t]*([^\\n]*?)\\s*```java\\s*([\\s\\S]*?)```",
+        Pattern.CASE_INSENSITIVE | Pattern.DOTALL
+    );
 
-    private static Properties loadApiKeys() {
-        Properties properties = new Properties();
-        try (InputStream in = AIClient.class.getClassLoader().getResourceAsStream("api-keys.properties")) {
-            if (in != null) {
-                properties.load(in);
-            }
-        } catch (IOException e) {
-            // Silent fail - will try environment variables
-        }
-        return properties;
+    public static String sendRequest(String model, String prompt, boolean verbose) throws Exception {
+        return sendRequest(model, Prompt.of(prompt), verbose);
     }
 
-    public static String sendRequest(String model, String prompt, boolean verbose) throws Exception {
+    public static String sendRequest(String model, Prompt prompt, boolean verbose) throws Exception {
         if (verbose) {
             System.out.println("\n=== SENDING REQUEST ===");
             System.out.println("[DEBUG] Model: " + model);
             System.out.println("[DEBUG] Prompt:\n" + prompt);
         }
 
-        String apiKey = getApiKey(model);
-        String apiUrl = getApiUrl(model);
-
-        HttpClient client = HttpClient.newHttpClient();
-        String requestBody = buildRequestBody(model, prompt);
-
-        HttpRequest request = HttpRequest.newBuilder()
-                .uri(URI.create(apiUrl))
-                .header("Content-Type", "application/json")
-                .header(model.toLowerCase().equals("claude") ? "x-api-key" : "Authorization", 
-                       model.toLowerCase().equals("claude") ? apiKey : "Bearer " + apiKey)
-                .header("anthropic-version", "2023-06-01")
-                .POST(HttpRequest.BodyPublishers.ofString(requestBody))
-                .build();
-
-        HttpResponse<String> response = client.send(request, HttpResponse.BodyHandlers.ofString());
+        Provider provider = Providers.get(model);
+        ProviderConfig config = ProviderConfig.forProvider(provider);
+        HttpResponse<String> response;
+        try (StreamingBody body = new StreamingBody(provider.buildRequest(prompt, config))) {
+            HttpRequest.Builder builder = HttpRequest.newBuilder()
+                    .uri(config.getEndpoint())
+                    .header("Content-Type", "application/json")
+                    .POST(body.publisher());
+            provider.authorize(builder, config.getApiKey());
+            response = send(builder, Deadline.current());
+        }
         
         if (verbose) {
             System.out.println("\n=== RAW RESPONSE ===");
             System.out.println("[DEBUG] Status Code: " + response.statusCode());
             System.out.println("[DEBUG] Response Body:\n" + response.body());
         }
-        
+
+        if (response.statusCode() >= 400) {
+            throw new IOException("Request to " + provider.name() + " failed with status "
+                + response.statusCode() + ": " + response.body());
+        }
+
+        UsageLedger.global().record(provider.name(), extractUsage(provider, response.body()));
         return response.body();
     }
 
-    public static AIResponse parseResponse(String response, boolean verbose) throws Exception {
+    /**
+     * A body that serializes the request while it is being sent. Jackson writes into a pipe on a
+     * separate thread and the HTTP client reads the other end, so the JSON request is never held
+     * in memory as a whole; a {@link NumberedSource} in the prompt is streamed from the source it
+     * numbers. The body is serialized again for every attempt the client makes.
+     *
+     * <p>Closing the body closes the reading end of every pipe it opened. A writer whose exchange
+     * was cancelled or answered before the body was read would otherwise block on a full pipe.
+     */
+    static final class StreamingBody implements AutoCloseable {
+        private final Object request;
+        private final List<PipedInputStream> pipes = new ArrayList<>();
+        private boolean closed;
+
+        StreamingBody(Object request) {
+            this.request = request;
+        }
+
+        HttpRequest.BodyPublisher publisher() {
+            return HttpRequest.BodyPublishers.ofInputStream(this::open);
+        }
+
+        private synchronized PipedInputStream open() {
+            try {
+                PipedInputStream in = new PipedInputStream(PIPE_SIZE);
+                PipedOutputStream out = new PipedOutputStream(in);
+                if (closed) {
+                    in.close();
+                    return in;
+                }
+                pipes.add(in);
+                BODY_WRITERS.execute(() -> write(in, out));
+                return in;
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        private void write(PipedInputStream in, PipedOutputStream out) {
+            try {
+                JSON_MAPPER.writeValue(out, request);
+            } catch (IOException e) {
+                synchronized (this) {
+                    if (closed) {
+                        // The exchange is over and nobody reads the body any more
+                        return;
+                    }
+                }
+                System.err.println("[ERROR] Could not write request body: " + e.getMessage());
+                try {
+                    // Fails the reading side instead of sending a truncated body
+                    in.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+
+        @Override
+        public synchronized void close() {
+            closed = true;
+            for (PipedInputStream in : pipes) {
+                try {
+                    in.close();
+                } catch (IOException ignored) {
+                }
+            }
+            pipes.clear();
+        }
+    }
+
+    /**
+     * Sends the request asynchronously under the deadline: the request times out when the
+     * deadline runs out, and cancelling the deadline cancels the in-flight exchange so that it
+     * releases its connection instead of running to completion.
+     */
+    private static HttpResponse<String> send(HttpRequest.Builder builder, Deadline deadline) throws Exception {
+        deadline.check();
+        if (deadline.hasTimeLimit()) {
+            builder.timeout(Duration.ofMillis(Math.max(1, deadline.remainingMillis())));
+        }
+        CompletableFuture<HttpResponse<String>> future =
+            HTTP_CLIENT.sendAsync(builder.build(), HttpResponse.BodyHandlers.ofString());
+        Runnable registration = deadline.onCancel(() -> future.cancel(true));
+        try {
+            return future.get();
+        } catch (CancellationException e) {
+            deadline.check();
+            throw e;
+        } catch (ExecutionException e) {
+            // A cancelled exchange fails with an IOException; report it as the cancellation it is
+            if (e.getCause() instanceof HttpTimeoutException) {
+                deadline.cancel("deadline exceeded");
+            }
+            deadline.check();
+            throw e.getCause() instanceof Exception cause ? cause : e;
+        } finally {
+            registration.run();
+        }
+    }
+
+    public static AIResponse parseResponse(String model, String response, boolean verbose) throws Exception {
         if (verbose) {
             System.out.println("\n=== PARSING RESPONSE ===");
         }
         
-        String content = extractContentFromApiResponse(response, verbose);
+        String content = extractContentFromApiResponse(model, response, verbose);
         
         if (content == null || content.trim().isEmpty()) {
             System.err.println("[ERROR] Empty or null content in response");
@@ -131,22 +243,19 @@ public class AIClient {
             }
         }
 
-        // Extract complete file
-        String completeFile = null;
-        Pattern completeFilePattern = Pattern.compile(
-            "COMPLETE\\s+FILE:\\s*```java\\s*([\\s\\S]*?)```",
-            Pattern.CASE_INSENSITIVE | Pattern.DOTALL
-        );
-        Matcher completeFileMatcher = completeFilePattern.matcher(content);
-        if (completeFileMatcher.find()) {
-            completeFile = completeFileMatcher.group(1).trim();
+        // Extract complete files; a prompt showing several files gets one block per changed file, named after it
+        Map<String, String> completeFiles = new LinkedHashMap<>();
+        Matcher completeFileMatcher = COMPLETE_FILE_PATTERN.matcher(content);
+        while (completeFileMatcher.find()) {
+            String fileName = completeFileMatcher.group(1).replaceAll("[`*\\[\\]<>]", "").trim();
+            completeFiles.putIfAbsent(fileName, completeFileMatcher.group(2).trim());
         }
 
         if (!bugFixes.isEmpty()) {
             if (verbose) {
                 System.out.println("[INFO] Successfully parsed " + bugFixes.size() + " bug fixes out of " + blockCount + " blocks");
             }
-            return new AIResponse(bugFixes, completeFile);
+            return new AIResponse(bugFixes, completeFiles);
         }
         
         if (verbose) {
@@ -156,7 +265,44 @@ public class AIClient {
         return null;
     }
 
-    private static String extractContentFromApiResponse(String response, boolean verbose) throws Exception {
+    /**
+     * Extracts the token usage reported in a raw API response, decoded by the provider that
+     * answered: the response formats overlap, but only the provider knows its own cache fields.
+     *
+     * @return the usage, or {@link TokenUsage#NONE} if the response carries none
+     */
+    public static TokenUsage extractUsage(String model, String response) {
+        return extractUsage(Providers.get(model), response);
+    }
+
+    private static TokenUsage extractUsage(Provider provider, String response) {
+        try {
+            TokenUsage usage = provider.decodeUsage(JSON_MAPPER.readTree(response));
+            if (usage != null) {
+                return usage;
+            }
+        } catch (Exception e) {
+            // Not JSON - no usage available
+        }
+        return TokenUsage.NONE;
+    }
+
+    /**
+     * Prints the token usage of a raw API response, if it reports any.
+     */
+    public static void printUsage(String model, String response) {
+        TokenUsage usage = extractUsage(model, response);
+        if (!usage.equals(TokenUsage.NONE)) {
+            System.out.println("📊 Tokens: " + usage);
+        }
+    }
+
+    /**
+     * Extracts the generated text from a raw API response, decoded by the provider that answered.
+     *
+     * @return the text, or the raw response if it is not in the provider's format
+     */
+    static String extractContentFromApiResponse(String model, String response, boolean verbose) throws Exception {
         if (verbose) {
             System.out.println("\n=== EXTRACTING CONTENT ===");
         }
@@ -167,35 +313,13 @@ public class AIClient {
                 System.out.println("[DEBUG] JSON Structure:\n" + root.toPrettyString());
             }
 
-            if (root.has("choices")) {
-                JsonNode choice = root.get("choices").get(0);
-                if (choice.has("message") && choice.get("message").has("content")) {
-                    String content = choice.get("message").get("content").asText();
-                    if (verbose) {
-                        System.out.println("[DEBUG] Extracted OpenAI content");
-                    }
-                    return content;
-                }
-            }
-
-            if (root.has("content")) {
-                StringBuilder contentBuilder = new StringBuilder();
-                for (JsonNode item : root.get("content")) {
-                    if (item.has("text")) {
-                        contentBuilder.append(item.get("text").asText());
-                    }
-                }
-                if (verbose) {
-                    System.out.println("[DEBUG] Extracted Anthropic content");
-                }
-                return contentBuilder.toString();
-            }
-
-            if (root.has("response")) {
+            Provider provider = Providers.get(model);
+            String content = provider.decodeContent(root);
+            if (content != null) {
                 if (verbose) {
-                    System.out.println("[DEBUG] Extracted DeepSeek content");
+                    System.out.println("[DEBUG] Extracted " + provider.name() + " content");
                 }
-                return root.get("response").asText();
+                return content;
             }
 
             if (verbose) {
@@ -212,49 +336,36 @@ public class AIClient {
         }
     }
 
-    private static String getApiKey(String model) {
-        String keyName = model.toUpperCase() + "_API_KEY";
-        String apiKey = API_KEYS.getProperty(keyName, System.getenv(keyName));
-        
-        if (apiKey == null || apiKey.isBlank()) {
-            throw new RuntimeException("Missing API key for " + model);
-        }
-        return apiKey;
-    }
-
-    private static String getApiUrl(String model) {
-        return switch (model.toLowerCase()) {
-            case "openai" -> "https://api.openai.com/v1/chat/completions";
-            case "claude" -> "https://api.anthropic.com/v1/messages";
-            case "deepseek" -> "https://api.deepseek.com/v1/chat/completions";
-            default -> throw new IllegalArgumentException("Unsupported model: " + model);
-        };
-    }
-
-    private static String buildRequestBody(String model, String prompt) throws Exception {
-        return switch (model.toLowerCase()) {
-            case "openai" -> JSON_MAPPER.writeValueAsString(new OpenAIRequest(prompt));
-            case "claude" -> JSON_MAPPER.writeValueAsString(new ClaudeRequest(prompt));
-            case "deepseek" -> JSON_MAPPER.writeValueAsString(new DeepSeekRequest(prompt));
-            default -> throw new IllegalArgumentException("Unsupported model: " + model);
-        };
-    }
-
     public static class AIResponse {
         private final List<BugFix> bugFixes;
-        private final String completeFile;
+        private final Map<String, String> completeFiles;
         
         public AIResponse(List<BugFix> bugFixes, String completeFile) {
+            this(bugFixes, completeFile != null ? Map.of("", completeFile) : Map.of());
+        }
+
+        /**
+         * @param completeFiles Complete fixed content per file, keyed by the file name given in
+         *                      the answer; the empty name stands for the file of a one-file prompt
+         */
+        public AIResponse(List<BugFix> bugFixes, Map<String, String> completeFiles) {
             this.bugFixes = bugFixes;
-            this.completeFile = completeFile;
+            this.completeFiles = new LinkedHashMap<>(completeFiles);
         }
 
         public List<BugFix> getBugFixes() { 
             return bugFixes; 
         }
 
+        /**
+         * Returns the complete fixed file, or the first of them if the answer covers several files.
+         */
         public String getCompleteFile() {
-            return completeFile;
+            return completeFiles.isEmpty() ? null : completeFiles.values().iterator().next();
+        }
+
+        public Map<String, String> getCompleteFiles() {
+            return completeFiles;
         }
 
         public void printBugSummary() {
@@ -291,19 +402,24 @@ public class AIClient {
                 }
             }
             
-            // Show the proposed changes
+            // Show the proposed changes, one block per file
             System.out.println("Proposed Changes:");
-            String fileName = bugFixes.get(0).getBugPosition().split(":")[0].trim();
-            System.out.println("file: " + fileName);
-            System.out.println("<<<<<<< SEARCH");
+            Map<String, List<BugFix>> byFile = new LinkedHashMap<>();
             for (BugFix bugFix : bugFixes) {
-                System.out.println(bugFix.getOriginalCode());
+                byFile.computeIfAbsent(bugFix.getBugPosition().split(":")[0].trim(), key -> new ArrayList<>()).add(bugFix);
             }
-            System.out.println("=======");
-            for (BugFix bugFix : bugFixes) {
-                System.out.println(bugFix.getCorrectedCode());
+            for (Map.Entry<String, List<BugFix>> fileFixes : byFile.entrySet()) {
+                System.out.println("file: " + fileFixes.getKey());
+                System.out.println("<<<<<<< SEARCH");
+                for (BugFix bugFix : fileFixes.getValue()) {
+                    System.out.println(bugFix.getOriginalCode());
+                }
+                System.out.println("=======");
+                for (BugFix bugFix : fileFixes.getValue()) {
+                    System.out.println(bugFix.getCorrectedCode());
+                }
+                System.out.println(">>>>>>> REPLACE");
             }
-            System.out.println(">>>>>>> REPLACE");
         }
 
         public static class BugFix {
@@ -329,66 +445,4 @@ public class AIClient {
             public String getOriginalCode() { return originalCode; }
         }
     }
-
-    private static class OpenAIRequest {
-        public String model = "gpt-4.1";
-        public List<Message> messages;
-
-        public OpenAIRequest(String prompt) {
-            this.messages = List.of(new Message("user", prompt));
-        }
-
-        static class Message {
-            public String role;
-            public String content;
-            public Message(String role, String content) {
-                this.role = role;
-                this.content = content;
-            }
-        }
-    }
-
-    private static class ClaudeRequest {
-        public String model = "claude-3-7-sonnet-20250219";
-        public int max_tokens = 8192;
-        public List<Message> messages;
-
-        public ClaudeRequest(String prompt) {
-            this.messages = List.of(new Message(prompt));
-        }
-
-        static class Message {
-            public String role = "user";
-            public List<Content> content;
-            public Message(String prompt) {
-                this.content = List.of(new Content(prompt));
-            }
-            static class Content {
-                public String type = "text";
-                public String text;
-                public Content(String text) {
-                    this.text = text;
-                }
-            }
-        }
-    }
-
-    private static class DeepSeekRequest {
-        public String model = "deepseek-reasoner";
-        public int max_tokens = 8192;
-        public List<Message> messages;
-
-        public DeepSeekRequest(String prompt) {
-            this.messages = List.of(new Message("user", prompt));
-        }
-
-        static class Message {
-            public String role;
-            public String content;
-            public Message(String role, String content) {
-                this.role = role;
-                this.content = content;
-            }
-        }
-    }
 }
\ No newline at end of file
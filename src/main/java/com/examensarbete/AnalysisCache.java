@@ -0,0 +1,141 @@
+package com.examensarbete;
+
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HexFormat;
+import java.util.List;
+
+/**
+ * The last analyzed content and findings of each file, kept in {@code .assistant/analysis}
+ * under the project root so that a later run only has to re-analyze what changed since.
+ * An analysis is only reused with the same model, answer format and related-types context,
+ * and it is dropped when a fix to the file is rolled back.
+ */
+public class AnalysisCache {
+    private static final ObjectMapper JSON_MAPPER = new ObjectMapper()
+        .configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+    private static final String CACHE_DIR = ".assistant/analysis";
+
+    private final Path projectRoot;
+
+    private AnalysisCache(Path projectRoot) {
+        this.projectRoot = projectRoot;
+    }
+
+    /**
+     * Opens the cache of the Maven/Gradle project containing the file.
+     */
+    public static AnalysisCache forFile(Path file) {
+        return new AnalysisCache(PatchJournal.projectRootOf(file));
+    }
+
+    /**
+     * Returns the last analysis of the file, or null if there is none or it was made with another
+     * model, answer format or context.
+     *
+     * @param structured   Whether JSON answers are requested
+     * @param relatedTypes Signature stubs of related project types sent with the file
+     */
+    public Entry load(Path file, String model, boolean structured, String relatedTypes) {
+        Path cacheFile = cacheFile(file);
+        if (!Files.exists(cacheFile)) {
+            return null;
+        }
+        Entry entry;
+        try {
+            entry = JSON_MAPPER.readValue(cacheFile.toFile(), Entry.class);
+        } catch (IOException e) {
+            System.err.println("⚠️ Ignoring unreadable analysis cache: " + e.getMessage());
+            return null;
+        }
+        if (!modelId(model).equals(entry.model) || structured != entry.structured
+            || !contextHash(relatedTypes).equals(entry.context)) {
+            return null;
+        }
+        return entry;
+    }
+
+    public void save(Path file, String content, List<AIClient.AIResponse.BugFix> bugFixes, String model,
+                     boolean structured, String relatedTypes) throws IOException {
+        Entry entry = new Entry();
+        entry.content = content;
+        entry.model = modelId(model);
+        entry.structured = structured;
+        entry.context = contextHash(relatedTypes);
+        for (AIClient.AIResponse.BugFix bugFix : bugFixes) {
+            entry.findings.add(Finding.of(bugFix));
+        }
+        PatchJournal.atomicWrite(cacheFile(file), JSON_MAPPER.writeValueAsBytes(entry));
+    }
+
+    /**
+     * Forgets the analysis of the file, for example because the file was restored to a version
+     * whose findings were just rejected.
+     */
+    public void invalidate(Path file) throws IOException {
+        Files.deleteIfExists(cacheFile(file));
+    }
+
+    /**
+     * Identifies the model answering for the provider: its name and the configured model id.
+     */
+    private static String modelId(String model) {
+        Provider provider = Providers.get(model);
+        return provider.name() + ":" + ProviderConfig.forProvider(provider).getModel();
+    }
+
+    private static String contextHash(String relatedTypes) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(relatedTypes.getBytes(StandardCharsets.UTF_8));
+            return HexFormat.of().formatHex(digest);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private Path cacheFile(Path file) {
+        Path relative = projectRoot.relativize(file.toAbsolutePath().normalize());
+        return projectRoot.resolve(CACHE_DIR).resolve(relative + ".json");
+    }
+
+    static class Entry {
+        public String content;
+        public String model;
+        public boolean structured;
+        public String context;
+        public List<Finding> findings = new ArrayList<>();
+
+        List<AIClient.AIResponse.BugFix> bugFixes() {
+            return findings.stream().map(Finding::toBugFix).toList();
+        }
+    }
+
+    static class Finding {
+        public String location;
+        public String type;
+        public String explanation;
+        public String original;
+        public String corrected;
+
+        static Finding of(AIClient.AIResponse.BugFix bugFix) {
+            Finding finding = new Finding();
+            finding.location = bugFix.getBugPosition();
+            finding.type = bugFix.getBugType();
+            finding.explanation = bugFix.getExplanation();
+            finding.original = bugFix.getOriginalCode();
+            finding.corrected = bugFix.getCorrectedCode();
+            return finding;
+        }
+
+        AIClient.AIResponse.BugFix toBugFix() {
+            return new AIClient.AIResponse.BugFix(location, corrected, type, explanation, original);
+        }
+    }
+}
@@ -0,0 +1,266 @@
+package com.examensarbete;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.function.ToLongFunction;
+
+/**
+ * Dispatches the files of a batch run to a worker pool in a chosen order while keeping the
+ * token spend within a per-run budget and a per-minute rate. Before a file is dispatched its
+ * cost is estimated from its size, calibrated against the usage recorded so far, and the
+ * estimate is reserved until the request completes, so concurrent requests cannot overshoot
+ * the limits together.
+ */
+public class BatchScheduler {
+    private static final int CHARS_PER_TOKEN = 4;
+    private static final int RESPONSE_OVERHEAD_TOKENS = 300;
+
+    public enum Order { SMALLEST_FIRST, CHURN, PATH }
+
+    /**
+     * Work done for one file; requests it makes are recorded in the {@link UsageLedger}.
+     */
+    public interface FileTask {
+        void run(Path file) throws Exception;
+    }
+
+    /**
+     * Outcome of a batch run.
+     */
+    public record Result(List<Path> completed, List<Path> failed, List<Path> skipped) {}
+
+    private final int concurrency;
+    private final long tokenBudget;
+    private final long tokensPerMinute;
+    private final UsageLedger ledger;
+
+    private long reservedTokens;
+    private long estimatedTokensDone;
+    private long actualTokensDone;
+    private int inFlight;
+
+    /**
+     * @param concurrency     Maximum number of files analyzed at the same time
+     * @param tokenBudget     Maximum tokens for the whole run, or 0 for no limit
+     * @param tokensPerMinute Maximum tokens per minute, or 0 for no limit
+     */
+    public BatchScheduler(int concurrency, long tokenBudget, long tokensPerMinute, UsageLedger ledger) {
+        this.concurrency = Math.max(1, concurrency);
+        this.tokenBudget = tokenBudget;
+        this.tokensPerMinute = tokensPerMinute;
+        this.ledger = ledger;
+    }
+
+    /**
+     * Orders the files for dispatch: smallest first gives the most files per token, churn
+     * puts the files changed most often in recent git history first.
+     */
+    public static List<Path> order(List<Path> files, Order order, Path projectRoot) throws IOException {
+        List<Path> ordered = new ArrayList<>(files);
+        switch (order) {
+            case SMALLEST_FIRST -> {
+                Map<Path, Long> sizes = new HashMap<>();
+                for (Path file : files) {
+                    sizes.put(file, Files.size(file));
+                }
+                ordered.sort(Comparator.comparingLong(sizes::get));
+            }
+            case CHURN -> {
+                Map<Path, Integer> churn = gitChurn(projectRoot);
+                ordered.sort(Comparator.comparingInt((Path file) -> churn.getOrDefault(file.toAbsolutePath().normalize(), 0))
+                    .reversed());
+            }
+            case PATH -> ordered.sort(Comparator.naturalOrder());
+        }
+        return ordered;
+    }
+
+    /**
+     * Runs the task for each file in the given order, pacing dispatch to the token limits.
+     * Files that would exceed the run budget are skipped.
+     */
+    public Result run(List<Path> files, FileTask task) throws InterruptedException {
+        return run(files, file -> 0, task);
+    }
+
+    /**
+     * Runs the task for each file like {@link #run(List, FileTask)}, first waiting the given
+     * backoff before a file that failed before is dispatched. The wait holds neither a worker
+     * nor a token reservation, and it ends early when the run is cancelled.
+     */
+    public Result run(List<Path> files, ToLongFunction<Path> backoffMillis, FileTask task) throws InterruptedException {
+        List<Path> completed = new ArrayList<>();
+        List<Path> failed = new ArrayList<>();
+        List<Path> skipped = new ArrayList<>();
+        ExecutorService executor = Executors.newFixedThreadPool(concurrency);
+        Deadline deadline = Deadline.current();
+        Runnable registration = deadline.onCancel(this::wakeUp);
+        try {
+            for (int i = 0; i < files.size(); i++) {
+                Path file = files.get(i);
+                long estimate = estimateTokens(file);
+                long reserved = pause(backoffMillis.applyAsLong(file), deadline) ? acquire(estimate, deadline) : -1;
+                if (reserved < 0) {
+                    System.out.println(deadline.isCancelled()
+                        ? "⛔ Körningen avbröts - hoppar över " + (files.size() - i) + " fil(er)."
+                        : "⛔ Tokenbudgeten räcker inte för fler filer - hoppar över " + (files.size() - i) + " fil(er).");
+                    skipped.addAll(files.subList(i, files.size()));
+                    break;
+                }
+                executor.execute(() -> {
+                    UsageLedger.setCurrentFile(file);
+                    boolean success = false;
+                    try {
+                        task.run(file);
+                        success = true;
+                    } catch (Exception e) {
+                        System.err.println("[ERROR] " + file + ": " + e.getMessage());
+                    } finally {
+                        UsageLedger.setCurrentFile(null);
+                        release(estimate, reserved, ledger.forFile(file).totalTokens());
+                        synchronized (completed) {
+                            (success ? completed : failed).add(file);
+                        }
+                    }
+                });
+            }
+        } finally {
+            registration.run();
+            executor.shutdown();
+            executor.awaitTermination(Long.MAX_VALUE, TimeUnit.DAYS);
+        }
+        return new Result(completed, failed, skipped);
+    }
+
+    /**
+     * Waits until a worker is free and the calibrated estimate fits the per-minute rate, then reserves it.
+     *
+     * @return the reserved tokens, or -1 if the estimate does not fit the remaining run budget
+     *         or the run was cancelled
+     */
+    private synchronized long acquire(long estimate, Deadline deadline) throws InterruptedException {
+        while (true) {
+            if (deadline.isCancelled()) {
+                return -1;
+            }
+            long calibrated = calibrate(estimate);
+            if (tokenBudget > 0) {
+                // Wait for in-flight requests first: their actual cost may leave room that the reservation hides
+                if (ledger.total().totalTokens() + reservedTokens + calibrated > tokenBudget) {
+                    if (inFlight == 0) {
+                        return -1;
+                    }
+                    wait();
+                    continue;
+                }
+            }
+            if (inFlight >= concurrency) {
+                wait();
+                continue;
+            }
+            if (tokensPerMinute > 0 && (inFlight > 0 || ledger.tokensInLastMinute() > 0)
+                && ledger.tokensInLastMinute() + reservedTokens + calibrated > tokensPerMinute) {
+                long waitMillis = ledger.millisUntilWindowShrinks();
+                wait(waitMillis > 0 ? waitMillis : 0);
+                continue;
+            }
+            reservedTokens += calibrated;
+            inFlight++;
+            return calibrated;
+        }
+    }
+
+    /**
+     * Waits for the given time unless the run is cancelled first.
+     *
+     * @return false if the run was cancelled
+     */
+    private synchronized boolean pause(long millis, Deadline deadline) throws InterruptedException {
+        long until = System.currentTimeMillis() + millis;
+        for (long left = millis; left > 0 && !deadline.isCancelled(); left = until - System.currentTimeMillis()) {
+            wait(left);
+        }
+        return !deadline.isCancelled();
+    }
+
+    private synchronized void wakeUp() {
+        notifyAll();
+    }
+
+    private synchronized void release(long estimate, long reserved, long actual) {
+        reservedTokens -= reserved;
+        estimatedTokensDone += estimate;
+        actualTokensDone += actual;
+        inFlight--;
+        notifyAll();
+    }
+
+    /**
+     * Scales a size-based estimate by the ratio of actual to estimated tokens observed so far.
+     */
+    private long calibrate(long estimate) {
+        if (estimatedTokensDone == 0) {
+            return estimate;
+        }
+        return Math.max(1, estimate * actualTokensDone / estimatedTokensDone);
+    }
+
+    /**
+     * Estimates the tokens of a bug-finding request for the file: the instructions and the
+     * numbered code in, and a response that repeats the complete file.
+     */
+    static long estimateTokens(Path file) {
+        try {
+            long codeTokens = Files.size(file) / CHARS_PER_TOKEN;
+            return PromptBuilder.BUG_FINDING_INSTRUCTIONS.length() / CHARS_PER_TOKEN
+                + codeTokens * 2 + RESPONSE_OVERHEAD_TOKENS;
+        } catch (IOException e) {
+            return RESPONSE_OVERHEAD_TOKENS;
+        }
+    }
+
+    /**
+     * Counts the commits touching each file during the last 90 days.
+     */
+    static Map<Path, Integer> gitChurn(Path projectRoot) {
+        Map<Path, Integer> churn = new HashMap<>();
+        try {
+            ProcessBuilder pb = new ProcessBuilder("git", "log", "--since=90.days", "--name-only", "--format=");
+            pb.directory(projectRoot.toFile());
+            pb.redirectErrorStream(true);
+            Process process = pb.start();
+            String output = new String(process.getInputStream().readAllBytes());
+            if (process.waitFor() != 0) {
+                return churn;
+            }
+            Path gitRoot = gitTopLevel(projectRoot);
+            for (String line : output.split("\n")) {
+                if (line.endsWith(".java")) {
+                    churn.merge(gitRoot.resolve(line.trim()).normalize(), 1, Integer::sum);
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("⚠️ Could not read git history: " + e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return churn;
+    }
+
+    private static Path gitTopLevel(Path projectRoot) throws IOException, InterruptedException {
+        Process process = new ProcessBuilder("git", "rev-parse", "--show-toplevel")
+            .directory(projectRoot.toFile())
+            .start();
+        String output = new String(process.getInputStream().readAllBytes()).trim();
+        return process.waitFor() == 0 && !output.isEmpty() ? Path.of(output) : projectRoot.toAbsolutePath();
+    }
+}
@@ -0,0 +1,341 @@
+package com.examensarbete;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import com.sun.management.ThreadMXBean;
+import java.io.IOException;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+import picocli.CommandLine;
+
+/**
+ * Drives the full pipeline (prompt, transport, parse, optional patch and compile check)
+ * over a corpus of Java files at a configurable concurrency and reports throughput,
+ * per-phase latency percentiles and allocation/GC statistics as JSON.
+ */
+@CommandLine.Command(name = "bench", description = "Benchmark the pipeline against a simulated provider")
+public class BenchCommand implements Callable<Integer> {
+    private static final ObjectMapper JSON_MAPPER = new ObjectMapper().enable(SerializationFeature.INDENT_OUTPUT);
+    private static final List<String> PHASES = List.of("prompt", "transport", "parse", "patch", "compile", "total");
+
+    @CommandLine.Option(names = {"--corpus"}, description = "Directory with Java files to use (default: generate a synthetic corpus)")
+    private Path corpus;
+
+    @CommandLine.Option(names = {"--files"}, description = "Number of synthetic files to generate", defaultValue = "50")
+    private int fileCount;
+
+    @CommandLine.Option(names = {"--lines"}, description = "Approximate lines per synthetic file", defaultValue = "150")
+    private int linesPerFile;
+
+    @CommandLine.Option(names = {"--repeat"}, description = "Number of passes over the corpus", defaultValue = "1")
+    private int repeat;
+
+    @CommandLine.Option(names = {"--warmup"}, description = "Requests sent before measuring", defaultValue = "5")
+    private int warmup;
+
+    @CommandLine.Option(names = {"--concurrency"}, description = "Number of files processed in parallel", defaultValue = "8")
+    private int concurrency;
+
+    @CommandLine.Option(names = {"-m", "--model"}, description = "Provider to benchmark; mock starts an in-process server", defaultValue = "mock")
+    private String model;
+
+    @CommandLine.Option(names = {"--latency"}, description = "Simulated latency distribution (mock only)",
+        defaultValue = "lognormal:800,0.4", converter = MockProviderServer.LatencyConverter.class)
+    private LatencyModel latency;
+
+    @CommandLine.Option(names = {"--error-rate"}, description = "Simulated share of failing requests (mock only)", defaultValue = "0.0")
+    private double errorRate;
+
+    @CommandLine.Option(names = {"--patch"}, description = "Validate and write the returned file", defaultValue = "false")
+    private boolean patch;
+
+    @CommandLine.Option(names = {"--compile"}, description = "Compile the returned file in memory", defaultValue = "false")
+    private boolean compile;
+
+    @CommandLine.Option(names = {"-o", "--output"}, description = "Write the JSON report to this file instead of stdout")
+    private Path output;
+
+    private final PromptBuilder promptBuilder = new PromptBuilder();
+    private final Map<String, ConcurrentLinkedQueue<Long>> timings = new ConcurrentHashMap<>();
+    private final Map<String, AtomicInteger> failures = new ConcurrentHashMap<>();
+    private final AtomicLong allocatedBytes = new AtomicLong();
+    private final AtomicInteger compileFailures = new AtomicInteger();
+    private Path workDir;
+
+    @Override
+    public Integer call() throws Exception {
+        workDir = Files.createTempDirectory("assistant-bench");
+        MockProviderServer server = null;
+        ExecutorService executor = null;
+        try {
+            List<Path> files = corpus != null ? loadCorpus(corpus) : generateCorpus(workDir.resolve("corpus"));
+            if (files.isEmpty()) {
+                System.err.println("[ERROR] No Java files found in corpus");
+                return 1;
+            }
+            // Measured like a batch run, which pads the instructions to be cached
+            promptBuilder.setCachePadding(true);
+
+            if (model.equalsIgnoreCase("mock")) {
+                server = new MockProviderServer(0, null, latency, errorRate);
+                server.start();
+                System.setProperty("MOCK_BASE_URL", server.getBaseUrl());
+            }
+
+            System.err.println("🔄 Warming up with " + warmup + " requests...");
+            executor = Executors.newFixedThreadPool(concurrency);
+            runAll(executor, files.subList(0, Math.min(warmup, files.size())), 1);
+            timings.clear();
+            failures.clear();
+            allocatedBytes.set(0);
+            compileFailures.set(0);
+
+            System.err.println("🔄 Benchmarking " + files.size() * repeat + " requests at concurrency " + concurrency + "...");
+            ManagementFactory.getMemoryPoolMXBeans().forEach(MemoryPoolMXBean::resetPeakUsage);
+            long gcCountBefore = gcCount();
+            long gcTimeBefore = gcTime();
+            long start = System.nanoTime();
+            runAll(executor, files, repeat);
+            long wallNanos = System.nanoTime() - start;
+
+            Map<String, Object> report = buildReport(files.size() * repeat, wallNanos,
+                gcCount() - gcCountBefore, gcTime() - gcTimeBefore);
+            String json = JSON_MAPPER.writeValueAsString(report);
+            if (output != null) {
+                Files.writeString(output, json);
+                System.err.println("✅ Report written to " + output);
+            } else {
+                System.out.println(json);
+            }
+            return 0;
+        } finally {
+            if (executor != null) {
+                executor.shutdownNow();
+            }
+            if (server != null) {
+                server.stop();
+                System.clearProperty("MOCK_BASE_URL");
+            }
+            try {
+                PatchJournal.deleteRecursively(workDir);
+            } catch (IOException e) {
+                System.err.println("⚠️ Could not delete " + workDir + ": " + e.getMessage());
+            }
+        }
+    }
+
+    private void runAll(ExecutorService executor, List<Path> files, int passes) throws Exception {
+        List<Future<?>> futures = new ArrayList<>();
+        for (int pass = 0; pass < passes; pass++) {
+            for (Path file : files) {
+                futures.add(executor.submit(() -> runOne(file)));
+            }
+        }
+        for (Future<?> future : futures) {
+            future.get();
+        }
+    }
+
+    private void runOne(Path file) {
+        ThreadMXBean threads = (ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long allocatedBefore = threads.getCurrentThreadAllocatedBytes();
+        long start = System.nanoTime();
+        try {
+            String code = FileReader.readFile(file.toString());
+
+            long phaseStart = System.nanoTime();
+            Prompt prompt = promptBuilder.buildBugFindingPrompt(code);
+            record("prompt", phaseStart);
+
+            phaseStart = System.nanoTime();
+            String response = AIClient.sendRequest(model, prompt, false);
+            record("transport", phaseStart);
+
+            phaseStart = System.nanoTime();
+            AIClient.AIResponse parsed = AIClient.parseResponse(model, response, false);
+            record("parse", phaseStart);
+            if (parsed == null || parsed.getCompleteFile() == null) {
+                fail("parse");
+                return;
+            }
+
+            if (patch) {
+                phaseStart = System.nanoTime();
+                if (!CodePatcher.validatePatch(parsed.getCompleteFile())) {
+                    fail("patch");
+                    return;
+                }
+                Files.writeString(workDir.resolve(Thread.currentThread().getId() + "-" + file.getFileName()),
+                    parsed.getCompleteFile());
+                record("patch", phaseStart);
+            }
+
+            if (compile) {
+                phaseStart = System.nanoTime();
+                String source = parsed.getCompleteFile();
+                InMemoryCompiler.Result result = InMemoryCompiler.compile(
+                    Map.of(InMemoryCompiler.className(source), source), List.of());
+                record("compile", phaseStart);
+                if (!result.success()) {
+                    compileFailures.incrementAndGet();
+                }
+            }
+
+            record("total", start);
+        } catch (Exception e) {
+            fail(e.getClass().getSimpleName());
+        } finally {
+            allocatedBytes.addAndGet(threads.getCurrentThreadAllocatedBytes() - allocatedBefore);
+        }
+    }
+
+    private void record(String phase, long startNanos) {
+        timings.computeIfAbsent(phase, p -> new ConcurrentLinkedQueue<>()).add(System.nanoTime() - startNanos);
+    }
+
+    private void fail(String reason) {
+        failures.computeIfAbsent(reason, r -> new AtomicInteger()).incrementAndGet();
+    }
+
+    private Map<String, Object> buildReport(int requests, long wallNanos, long gcCount, long gcTimeMs) {
+        Map<String, Object> report = new LinkedHashMap<>();
+        report.put("version", Main.class.getAnnotation(CommandLine.Command.class).version()[0]);
+        report.put("timestamp", Instant.now().toString());
+
+        Map<String, Object> config = new LinkedHashMap<>();
+        config.put("model", model);
+        config.put("corpus", corpus != null ? corpus.toString() : "synthetic");
+        config.put("requests", requests);
+        config.put("concurrency", concurrency);
+        config.put("latency", model.equalsIgnoreCase("mock") ? latency.toString() : null);
+        config.put("errorRate", errorRate);
+        config.put("patch", patch);
+        config.put("compile", compile);
+        config.put("javaVersion", System.getProperty("java.version"));
+        config.put("availableProcessors", Runtime.getRuntime().availableProcessors());
+        report.put("config", config);
+
+        int succeeded = timings.getOrDefault("total", new ConcurrentLinkedQueue<>()).size();
+        double wallSeconds = wallNanos / 1e9;
+        Map<String, Object> results = new LinkedHashMap<>();
+        results.put("wallClockMs", Math.round(wallNanos / 1e6));
+        results.put("succeeded", succeeded);
+        results.put("failed", requests - succeeded);
+        Map<String, Integer> failureReasons = new LinkedHashMap<>();
+        failures.forEach((reason, count) -> failureReasons.put(reason, count.get()));
+        results.put("failureReasons", failureReasons);
+        results.put("compileFailures", compileFailures.get());
+        results.put("filesPerMinute", round(succeeded / wallSeconds * 60));
+        report.put("results", results);
+
+        Map<String, Object> phases = new LinkedHashMap<>();
+        for (String phase : PHASES) {
+            ConcurrentLinkedQueue<Long> samples = timings.get(phase);
+            if (samples != null && !samples.isEmpty()) {
+                phases.put(phase, summarize(samples));
+            }
+        }
+        report.put("phases", phases);
+
+        Map<String, Object> memory = new LinkedHashMap<>();
+        memory.put("allocatedBytes", allocatedBytes.get());
+        memory.put("allocatedBytesPerRequest", requests > 0 ? allocatedBytes.get() / requests : 0);
+        memory.put("gcCount", gcCount);
+        memory.put("gcTimeMs", gcTimeMs);
+        memory.put("peakHeapBytes", ManagementFactory.getMemoryPoolMXBeans().stream()
+            .filter(pool -> pool.getType() == MemoryType.HEAP)
+            .mapToLong(pool -> pool.getPeakUsage().getUsed())
+            .sum());
+        report.put("memory", memory);
+        return report;
+    }
+
+    private static Map<String, Object> summarize(ConcurrentLinkedQueue<Long> samples) {
+        long[] sorted = samples.stream().mapToLong(Long::longValue).sorted().toArray();
+        Map<String, Object> summary = new LinkedHashMap<>();
+        summary.put("count", sorted.length);
+        summary.put("meanMs", round(Arrays.stream(sorted).average().orElse(0) / 1e6));
+        summary.put("p50Ms", round(percentile(sorted, 50) / 1e6));
+        summary.put("p95Ms", round(percentile(sorted, 95) / 1e6));
+        summary.put("p99Ms", round(percentile(sorted, 99) / 1e6));
+        summary.put("maxMs", round(sorted[sorted.length - 1] / 1e6));
+        return summary;
+    }
+
+    /**
+     * Nearest-rank percentile of a sorted sample.
+     */
+    private static long percentile(long[] sorted, double percentile) {
+        int rank = (int) Math.ceil(percentile / 100.0 * sorted.length);
+        return sorted[Math.max(0, Math.min(sorted.length - 1, rank - 1))];
+    }
+
+    private static double round(double value) {
+        return Math.round(value * 100) / 100.0;
+    }
+
+    private static long gcCount() {
+        return ManagementFactory.getGarbageCollectorMXBeans().stream()
+            .mapToLong(GarbageCollectorMXBean::getCollectionCount).filter(c -> c > 0).sum();
+    }
+
+    private static long gcTime() {
+        return ManagementFactory.getGarbageCollectorMXBeans().stream()
+            .mapToLong(GarbageCollectorMXBean::getCollectionTime).filter(t -> t > 0).sum();
+    }
+
+    private static List<Path> loadCorpus(Path dir) throws Exception {
+        try (Stream<Path> paths = Files.walk(dir)) {
+            return paths.filter(p -> p.toString().endsWith(".java")).sorted().toList();
+        }
+    }
+
+    /**
+     * Generates compilable classes of roughly {@code linesPerFile} lines, each with a seeded off-by-one bug.
+     */
+    private List<Path> generateCorpus(Path dir) throws Exception {
+        Files.createDirectories(dir);
+        List<Path> files = new ArrayList<>();
+        int methods = Math.max(1, (linesPerFile - 5) / 8);
+        for (int i = 0; i < fileCount; i++) {
+            String className = "BenchClass" + i;
+            StringBuilder source = new StringBuilder();
+            source.append("package bench;\n\n");
+            source.append("public class ").append(className).append(" {\n");
+            source.append("    private int[] values = new int[").append(16 + i).append("];\n\n");
+            for (int m = 0; m < methods; m++) {
+                source.append("    public int sum").append(m).append("(int offset) {\n");
+                source.append("        int total = 0;\n");
+                source.append("        for (int i = 0; i <").append(m % 5 == 0 ? "=" : "").append(" values.length; i++) {\n");
+                source.append("            total += values[i] * ").append(m + 1).append(" + offset;\n");
+                source.append("        }\n");
+                source.append("        return total;\n");
+                source.append("    }\n\n");
+            }
+            source.append("}\n");
+            Path file = dir.resolve(className + ".java");
+            Files.writeString(file, source.toString());
+            files.add(file);
+        }
+        return files;
+    }
+}
@@ -0,0 +1,112 @@
+package com.examensarbete;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.databind.JsonNode;
+import java.net.http.HttpRequest;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Base class for providers speaking the OpenAI chat completions protocol.
+ */
+public abstract class ChatCompletionsProvider implements Provider {
+
+    @Override
+    public String endpointPath() {
+        return "/chat/completions";
+    }
+
+    @Override
+    public void authorize(HttpRequest.Builder builder, String apiKey) {
+        if (apiKey != null && !apiKey.isBlank()) {
+            builder.header("Authorization", "Bearer " + apiKey);
+        }
+    }
+
+    @Override
+    public Object buildRequest(Prompt prompt, ProviderConfig config) {
+        List<ChatRequest.Message> messages = new ArrayList<>();
+        if (prompt.hasSystem()) {
+            messages.add(new ChatRequest.Message("system", prompt.system()));
+        }
+        messages.add(new ChatRequest.Message("user", prompt.user()));
+        return new ChatRequest(
+            config.getModel(),
+            sendsMaxTokens() ? config.getMaxTokens() : null,
+            messages,
+            prompt.isStructured() ? responseFormat(prompt.responseSchema()) : null
+        );
+    }
+
+    /**
+     * The {@code response_format} requesting JSON output that matches the schema.
+     * Defaults to OpenAI strict structured outputs.
+     */
+    protected Object responseFormat(JsonNode schema) {
+        return Map.of(
+            "type", "json_schema",
+            "json_schema", Map.of("name", "bug_report", "strict", true, "schema", schema)
+        );
+    }
+
+    @Override
+    public String decodeContent(JsonNode root) {
+        if (root.has("choices")) {
+            JsonNode choice = root.get("choices").get(0);
+            if (choice != null && choice.has("message") && choice.get("message").has("content")) {
+                return choice.get("message").get("content").asText();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Reads OpenAI style usage, where cached prompt tokens are reported in
+     * {@code prompt_tokens_details.cached_tokens}. Caching is automatic, so there are no cache writes.
+     */
+    @Override
+    public TokenUsage decodeUsage(JsonNode root) {
+        if (!root.has("choices") || !root.has("usage")) {
+            return null;
+        }
+        JsonNode usage = root.get("usage");
+        return new TokenUsage(
+            usage.path("prompt_tokens").asLong(),
+            usage.path("completion_tokens").asLong(),
+            usage.path("prompt_tokens_details").path("cached_tokens").asLong(),
+            0
+        );
+    }
+
+    /**
+     * Whether {@code max_tokens} is included in the request body.
+     */
+    protected boolean sendsMaxTokens() {
+        return true;
+    }
+
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    static class ChatRequest {
+        public String model;
+        public Integer max_tokens;
+        public List<Message> messages;
+        public Object response_format;
+
+        ChatRequest(String model, Integer maxTokens, List<Message> messages, Object responseFormat) {
+            this.model = model;
+            this.max_tokens = maxTokens;
+            this.messages = messages;
+            this.response_format = responseFormat;
+        }
+
+        static class Message {
+            public String role;
+            public CharSequence content;
+            public Message(String role, CharSequence content) {
+                this.role = role;
+                this.content = content;
+            }
+        }
+    }
+}
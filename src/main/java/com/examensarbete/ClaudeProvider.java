@@ -0,0 +1,149 @@
+package com.examensarbete;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.databind.JsonNode;
+import java.net.http.HttpRequest;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Anthropic messages API.
+ */
+public class ClaudeProvider implements Provider {
+    private static final String STRUCTURED_TOOL = "report_bugs";
+
+    @Override
+    public String name() {
+        return "claude";
+    }
+
+    @Override
+    public String defaultBaseUrl() {
+        return "https://api.anthropic.com/v1";
+    }
+
+    @Override
+    public String defaultModel() {
+        return "claude-3-7-sonnet-20250219";
+    }
+
+    @Override
+    public String endpointPath() {
+        return "/messages";
+    }
+
+    @Override
+    public void authorize(HttpRequest.Builder builder, String apiKey) {
+        builder.header("x-api-key", apiKey);
+        builder.header("anthropic-version", "2023-06-01");
+    }
+
+    @Override
+    public Object buildRequest(Prompt prompt, ProviderConfig config) {
+        return new ClaudeRequest(config.getModel(), config.getMaxTokens(), prompt);
+    }
+
+    @Override
+    public String decodeContent(JsonNode root) {
+        if (!root.has("content") || !root.get("content").isArray()) {
+            return null;
+        }
+        StringBuilder contentBuilder = new StringBuilder();
+        for (JsonNode item : root.get("content")) {
+            if ("tool_use".equals(item.path("type").asText())) {
+                // Structured output is returned as the input of the forced tool call
+                return item.path("input").toString();
+            }
+            if (item.has("text")) {
+                contentBuilder.append(item.get("text").asText());
+            }
+        }
+        return contentBuilder.toString();
+    }
+
+    /**
+     * Anthropic reports uncached input, cache reads and cache writes separately; they are summed into input tokens.
+     */
+    @Override
+    public TokenUsage decodeUsage(JsonNode root) {
+        if (!root.has("content") || !root.has("usage")) {
+            return null;
+        }
+        JsonNode usage = root.get("usage");
+        long cacheRead = usage.path("cache_read_input_tokens").asLong();
+        long cacheWrite = usage.path("cache_creation_input_tokens").asLong();
+        return new TokenUsage(
+            usage.path("input_tokens").asLong() + cacheRead + cacheWrite,
+            usage.path("output_tokens").asLong(),
+            cacheRead,
+            cacheWrite
+        );
+    }
+
+    @Override
+    public Limits limits() {
+        return new Limits(8192, 200000);
+    }
+
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    static class ClaudeRequest {
+        public String model;
+        public int max_tokens;
+        public List<SystemBlock> system;
+        public List<Message> messages;
+        public List<Tool> tools;
+        public Map<String, String> tool_choice;
+
+        ClaudeRequest(String model, int maxTokens, Prompt prompt) {
+            this.model = model;
+            this.max_tokens = maxTokens;
+            this.system = prompt.hasSystem() ? List.of(new SystemBlock(prompt.system())) : null;
+            this.messages = List.of(new Message(prompt.user()));
+            if (prompt.isStructured()) {
+                // Forcing a single tool call is how the messages API returns schema-conformant JSON
+                this.tools = List.of(new Tool(STRUCTURED_TOOL, prompt.responseSchema()));
+                this.tool_choice = Map.of("type", "tool", "name", STRUCTURED_TOOL);
+            }
+        }
+
+        static class Tool {
+            public String name;
+            public String description = "Report the bugs found and the complete fixed file";
+            public JsonNode input_schema;
+            public Tool(String name, JsonNode inputSchema) {
+                this.name = name;
+                this.input_schema = inputSchema;
+            }
+        }
+
+        /**
+         * System prompt block marked as the end of the cacheable prefix.
+         */
+        static class SystemBlock {
+            public String type = "text";
+            public String text;
+            public CacheControl cache_control = new CacheControl();
+            public SystemBlock(String text) {
+                this.text = text;
+            }
+            static class CacheControl {
+                public String type = "ephemeral";
+            }
+        }
+
+        static class Message {
+            public String role = "user";
+            public List<Content> content;
+            public Message(CharSequence prompt) {
+                this.content = List.of(new Content(prompt));
+            }
+            static class Content {
+                public String type = "text";
+                public CharSequence text;
+                public Content(CharSequence text) {
+                    this.text = text;
+                }
+            }
+        }
+    }
+}
@@ -1,15 +1,23 @@
 package com.examensarbete;
 
-import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 import java.util.logging.Logger;
 import java.util.logging.Level;
 
 /**
  * Utility class for applying code fixes to source files.
+ * All writes go through a {@link PatchJournal} transaction so they can be rolled back.
  */
 public class CodePatcher {
     private static final Logger LOGGER = Logger.getLogger(CodePatcher.class.getName());
+    private static final Pattern NUMBERED_LINE = Pattern.compile("^\\s*(\\d+)\\s*\\| ?(.*)$");
 
     /**
      * Applies a code patch by replacing the entire file content with the corrected version.
@@ -29,26 +37,161 @@ public class CodePatcher {
         }
 
         Path path = Path.of(filePath);
-        
-        // Create backup of original content
-        String originalContent = Files.readString(path);
-        
-        // Validate the corrected code
-        if (!validatePatch(correctedCode)) {
-            System.err.println("❌ Patch validation failed - not applying changes");
+        return applyPatches(PatchJournal.forFile(path), Map.of(path, correctedCode)) != null;
+    }
+
+    /**
+     * Applies the complete new content of one or more files as a single journal transaction.
+     * Nothing is written unless every file passes validation, and if any write fails or the
+     * current {@link Deadline} is cancelled the files already written are restored.
+     *
+     * @param journal Journal recording the pre-images
+     * @param patches Complete corrected content keyed by file
+     * @return the committed transaction, or null if validation failed
+     * @throws Exception If there's an error reading or writing the files
+     */
+    public static PatchJournal.Transaction applyPatches(PatchJournal journal, Map<Path, String> patches) throws Exception {
+        for (Map.Entry<Path, String> patch : patches.entrySet()) {
+            if (!validatePatch(patch.getValue())) {
+                System.err.println("❌ Patch validation failed for " + patch.getKey() + " - not applying changes");
+                return null;
+            }
+        }
+
+        Deadline deadline = Deadline.current();
+        deadline.check();
+        PatchJournal.Transaction transaction = journal.begin("Fix " + patches.keySet());
+        try {
+            for (Map.Entry<Path, String> patch : patches.entrySet()) {
+                // A fix cancelled halfway is rolled back rather than left partly applied
+                deadline.check();
+                transaction.write(patch.getKey(), patch.getValue());
+            }
+            transaction.commit();
+        } catch (Exception e) {
+            transaction.rollback();
+            throw e;
+        }
+
+        for (Path path : patches.keySet()) {
+            System.out.println("✅ Successfully applied fix to " + path);
+        }
+        return transaction;
+    }
+    
+    /**
+     * Applies the corrected snippets of the bug fixes to the code. Each original snippet is
+     * located by the line numbers it carries or, if those do not match, by its text provided it
+     * occurs only once in the file. Used when the model only saw part of the file and could not
+     * return it complete.
+     *
+     * @param code     Current content of the file
+     * @param bugFixes Fixes with numbered original and corrected snippets
+     * @param verbose  Whether to print debug output
+     * @return the patched code and the fixes that could not be applied: those whose original
+     *         snippet is not found or is ambiguous, and those overlapping another fix
+     */
+    public static SnippetPatch applySnippets(String code, List<AIClient.AIResponse.BugFix> bugFixes, boolean verbose) {
+        List<String> lines = new ArrayList<>(Arrays.asList(code.split("\n", -1)));
+        List<Replacement> replacements = new ArrayList<>();
+        List<AIClient.AIResponse.BugFix> skipped = new ArrayList<>();
+        for (AIClient.AIResponse.BugFix bugFix : bugFixes) {
+            List<String> original = new ArrayList<>();
+            int startLine = stripLineNumbers(bugFix.getOriginalCode(), original);
+            List<String> corrected = new ArrayList<>();
+            stripLineNumbers(bugFix.getCorrectedCode(), corrected);
+
+            int index = startLine > 0 && matchesAt(lines, startLine - 1, original) ? startLine - 1 : uniqueMatch(lines, original);
+            if (index < 0) {
+                if (verbose) {
+                    System.out.println("[DEBUG] Original snippet of " + bugFix.getBugPosition() + " not found or ambiguous - skipping");
+                }
+                skipped.add(bugFix);
+                continue;
+            }
+            replacements.add(new Replacement(bugFix, index, original.size(), corrected));
+        }
+
+        // Apply bottom-up so earlier line indexes stay valid, skipping overlapping fixes
+        replacements.sort(Comparator.comparingInt(Replacement::index).reversed());
+        int lowestApplied = Integer.MAX_VALUE;
+        for (Replacement replacement : replacements) {
+            if (replacement.index() + replacement.length() > lowestApplied) {
+                if (verbose) {
+                    System.out.println("[DEBUG] Fix of " + replacement.bugFix().getBugPosition() + " overlaps another fix - skipping");
+                }
+                skipped.add(replacement.bugFix());
+                continue;
+            }
+            List<String> target = lines.subList(replacement.index(), replacement.index() + replacement.length());
+            target.clear();
+            target.addAll(replacement.lines());
+            lowestApplied = replacement.index();
+        }
+        return new SnippetPatch(String.join("\n", lines), skipped);
+    }
+
+    /**
+     * Result of {@link #applySnippets}: the patched code and the fixes left out of it.
+     */
+    public record SnippetPatch(String code, List<AIClient.AIResponse.BugFix> skipped) {}
+
+    /**
+     * Strips the "N | " prefixes from a snippet.
+     *
+     * @return the first line number found, or -1 if the snippet carries none
+     */
+    private static int stripLineNumbers(String snippet, List<String> lines) {
+        int firstLine = -1;
+        for (String line : snippet.split("\n")) {
+            Matcher matcher = NUMBERED_LINE.matcher(line);
+            if (matcher.matches()) {
+                if (firstLine < 0) {
+                    firstLine = Integer.parseInt(matcher.group(1));
+                }
+                lines.add(matcher.group(2));
+            } else {
+                lines.add(line);
+            }
+        }
+        return firstLine;
+    }
+
+    /**
+     * Returns the only position the snippet occurs at, or -1 if it occurs nowhere or in several
+     * places: a short snippet such as {@code return null;} cannot be placed by its text alone.
+     */
+    private static int uniqueMatch(List<String> lines, List<String> snippet) {
+        int found = -1;
+        for (int i = 0; i + snippet.size() <= lines.size(); i++) {
+            if (matchesAt(lines, i, snippet)) {
+                if (found >= 0) {
+                    return -1;
+                }
+                found = i;
+            }
+        }
+        return found;
+    }
+
+    private static boolean matchesAt(List<String> lines, int index, List<String> snippet) {
+        if (snippet.isEmpty() || index < 0 || index + snippet.size() > lines.size()) {
             return false;
         }
-        
-        // Apply the changes
-        Files.writeString(path, correctedCode);
-        System.out.println("✅ Successfully applied fix to " + filePath);
+        for (int i = 0; i < snippet.size(); i++) {
+            if (!lines.get(index + i).trim().equals(snippet.get(i).trim())) {
+                return false;
+            }
+        }
         return true;
     }
-    
+
+    private record Replacement(AIClient.AIResponse.BugFix bugFix, int index, int length, List<String> lines) {}
+
     /**
      * Validates the patched code by checking for basic syntax errors.
      */
-    private static boolean validatePatch(String patchedCode) {
+    static boolean validatePatch(String patchedCode) {
         // Basic validation - check for unmatched braces, brackets, etc.
         int braceCount = 0;
         int bracketCount = 0;
@@ -67,4 +210,4 @@ public class CodePatcher {
         
         return braceCount == 0 && bracketCount == 0 && parenCount == 0;
     }
-}
\ No newline at end of file
+}
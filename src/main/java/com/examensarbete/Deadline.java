@@ -0,0 +1,166 @@
+package com.examensarbete;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Deadline and cancellation signal shared by the stages working on a run or a file. A deadline
+ * is cancelled when its time runs out, when {@link #cancel} is called (for example on Ctrl-C)
+ * or when its parent is cancelled. Stages register callbacks that stop their work right away,
+ * such as cancelling an in-flight HTTP request or destroying a build process tree, and check
+ * the deadline between steps. The deadline a thread works under is set with {@link #setCurrent}.
+ */
+public class Deadline implements AutoCloseable {
+    private static final ScheduledExecutorService TIMER = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "deadline-timer");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private static final Deadline NONE = new Deadline(null, null);
+    private static final ThreadLocal<Deadline> CURRENT = new ThreadLocal<>();
+
+    private final long expiresAtNanos;
+    private final List<Runnable> callbacks = new ArrayList<>();
+    private final Runnable parentRegistration;
+    private final ScheduledFuture<?> timer;
+    private volatile String cancelReason;
+
+    private Deadline(Deadline parent, Duration timeout) {
+        long expiresAt = timeout != null && !timeout.isZero() ? System.nanoTime() + timeout.toNanos() : Long.MAX_VALUE;
+        if (parent != null) {
+            expiresAt = Math.min(expiresAt, parent.expiresAtNanos);
+        }
+        this.expiresAtNanos = expiresAt;
+        this.parentRegistration = parent != null ? parent.onCancel(() -> cancel(parent.cancelReason)) : () -> { };
+        this.timer = expiresAt != Long.MAX_VALUE
+            ? TIMER.schedule(() -> cancel("deadline exceeded"), expiresAt - System.nanoTime(), TimeUnit.NANOSECONDS)
+            : null;
+    }
+
+    /**
+     * Creates a deadline for a whole run.
+     *
+     * @param timeout Time allowed, or null or zero for no time limit
+     */
+    public static Deadline of(Duration timeout) {
+        return new Deadline(null, timeout);
+    }
+
+    /**
+     * Creates a deadline that expires after the timeout or with this one, whichever comes first.
+     */
+    public Deadline child(Duration timeout) {
+        return new Deadline(this == NONE ? null : this, timeout);
+    }
+
+    /**
+     * Returns the deadline the current thread works under, or one that never expires.
+     */
+    public static Deadline current() {
+        Deadline deadline = CURRENT.get();
+        return deadline != null ? deadline : NONE;
+    }
+
+    public static void setCurrent(Deadline deadline) {
+        if (deadline == null) {
+            CURRENT.remove();
+        } else {
+            CURRENT.set(deadline);
+        }
+    }
+
+    public boolean isCancelled() {
+        return cancelReason != null;
+    }
+
+    public boolean hasTimeLimit() {
+        return expiresAtNanos != Long.MAX_VALUE;
+    }
+
+    /**
+     * Returns the time left, or {@link Long#MAX_VALUE} if there is no time limit.
+     */
+    public long remainingMillis() {
+        if (!hasTimeLimit()) {
+            return Long.MAX_VALUE;
+        }
+        return Math.max(0, TimeUnit.NANOSECONDS.toMillis(expiresAtNanos - System.nanoTime()));
+    }
+
+    /**
+     * Throws if the deadline has been cancelled or has run out.
+     */
+    public void check() {
+        if (cancelReason == null && hasTimeLimit() && System.nanoTime() >= expiresAtNanos) {
+            cancel("deadline exceeded");
+        }
+        if (cancelReason != null) {
+            throw new CancellationException("Cancelled: " + cancelReason);
+        }
+    }
+
+    /**
+     * Cancels the deadline and runs the registered callbacks. Later calls have no effect.
+     */
+    public void cancel(String reason) {
+        if (this == NONE) {
+            return;
+        }
+        List<Runnable> toRun;
+        synchronized (callbacks) {
+            if (cancelReason != null) {
+                return;
+            }
+            cancelReason = reason != null ? reason : "cancelled";
+            toRun = new ArrayList<>(callbacks);
+            callbacks.clear();
+        }
+        for (Runnable callback : toRun) {
+            try {
+                callback.run();
+            } catch (RuntimeException e) {
+                System.err.println("[ERROR] Cancellation callback failed: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Registers a callback run on cancellation, or right away if already cancelled.
+     *
+     * @return a handle that removes the callback again once the guarded work has finished
+     */
+    public Runnable onCancel(Runnable callback) {
+        if (this == NONE) {
+            return () -> { };
+        }
+        synchronized (callbacks) {
+            if (cancelReason == null) {
+                callbacks.add(callback);
+                return () -> {
+                    synchronized (callbacks) {
+                        callbacks.remove(callback);
+                    }
+                };
+            }
+        }
+        callback.run();
+        return () -> { };
+    }
+
+    /**
+     * Releases the timer and the registration with the parent; does not cancel.
+     */
+    @Override
+    public void close() {
+        if (timer != null) {
+            timer.cancel(false);
+        }
+        parentRegistration.run();
+    }
+}
@@ -0,0 +1,60 @@
+package com.examensarbete;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import java.util.Map;
+
+/**
+ * DeepSeek chat completions.
+ */
+public class DeepSeekProvider extends ChatCompletionsProvider {
+
+    @Override
+    public String name() {
+        return "deepseek";
+    }
+
+    @Override
+    public String defaultBaseUrl() {
+        return "https://api.deepseek.com/v1";
+    }
+
+    @Override
+    public String defaultModel() {
+        return "deepseek-reasoner";
+    }
+
+    @Override
+    public Limits limits() {
+        return new Limits(8192, 65536);
+    }
+
+    /**
+     * DeepSeek supports JSON mode but not schemas; the schema is described in the prompt instead.
+     */
+    @Override
+    protected Object responseFormat(JsonNode schema) {
+        return Map.of("type", "json_object");
+    }
+
+    @Override
+    public String decodeContent(JsonNode root) {
+        String content = super.decodeContent(root);
+        if (content == null && root.has("response")) {
+            return root.get("response").asText();
+        }
+        return content;
+    }
+
+    /**
+     * DeepSeek caches prompt prefixes automatically and reports hits as {@code prompt_cache_hit_tokens}.
+     */
+    @Override
+    public TokenUsage decodeUsage(JsonNode root) {
+        TokenUsage usage = super.decodeUsage(root);
+        if (usage == null || !root.get("usage").has("prompt_cache_hit_tokens")) {
+            return usage;
+        }
+        return new TokenUsage(usage.inputTokens(), usage.outputTokens(),
+            root.get("usage").get("prompt_cache_hit_tokens").asLong(), 0);
+    }
+}
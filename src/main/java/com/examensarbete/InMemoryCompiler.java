@@ -0,0 +1,131 @@
+package com.examensarbete;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.URI;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import javax.tools.Diagnostic;
+import javax.tools.DiagnosticCollector;
+import javax.tools.FileObject;
+import javax.tools.ForwardingJavaFileManager;
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileObject;
+import javax.tools.SimpleJavaFileObject;
+import javax.tools.StandardJavaFileManager;
+import javax.tools.ToolProvider;
+
+/**
+ * Compiles Java sources held in memory, keeping the generated class files in memory as well.
+ */
+public class InMemoryCompiler {
+    private static final Pattern PACKAGE_PATTERN = Pattern.compile("(?m)^\\s*package\\s+([\\w.]+)\\s*;");
+    private static final Pattern TYPE_PATTERN = Pattern.compile("\\b(?:class|interface|enum|record)\\s+(\\w+)");
+
+    /**
+     * Compiles the given sources against the class path.
+     *
+     * @param sources   Source code keyed by fully qualified class name
+     * @param classpath Directories and jars to compile against
+     * @return the compilation result, including class bytes keyed by binary class name
+     */
+    public static Result compile(Map<String, String> sources, List<Path> classpath) throws IOException {
+        JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+        if (compiler == null) {
+            throw new IllegalStateException("No Java compiler available - run on a JDK, not a JRE");
+        }
+
+        List<JavaFileObject> units = new ArrayList<>();
+        for (Map.Entry<String, String> source : sources.entrySet()) {
+            units.add(new SourceFile(source.getKey(), source.getValue()));
+        }
+
+        List<String> options = new ArrayList<>(List.of("-proc:none", "-implicit:none", "-nowarn"));
+        if (!classpath.isEmpty()) {
+            options.add("-classpath");
+            options.add(classpath.stream().map(Path::toString).collect(Collectors.joining(File.pathSeparator)));
+        }
+
+        DiagnosticCollector<JavaFileObject> diagnostics = new DiagnosticCollector<>();
+        // Closing the file managers releases the jars of the class path they have opened
+        try (StandardJavaFileManager standardManager = compiler.getStandardFileManager(diagnostics, null, null);
+             MemoryFileManager fileManager = new MemoryFileManager(standardManager)) {
+            boolean success = compiler.getTask(null, fileManager, diagnostics, options, null, units).call();
+            List<String> errors = diagnostics.getDiagnostics().stream()
+                .filter(d -> d.getKind() == Diagnostic.Kind.ERROR)
+                .map(d -> (d.getSource() != null ? d.getSource().getName() + ":" + d.getLineNumber() + ": " : "")
+                    + d.getMessage(null))
+                .toList();
+            return new Result(success, errors, fileManager.classes());
+        }
+    }
+
+    /**
+     * Derives the fully qualified name of the first top-level type declared in the source.
+     */
+    public static String className(String source) {
+        Matcher typeMatcher = TYPE_PATTERN.matcher(source);
+        String simpleName = typeMatcher.find() ? typeMatcher.group(1) : "Unknown";
+        Matcher packageMatcher = PACKAGE_PATTERN.matcher(source);
+        return packageMatcher.find() ? packageMatcher.group(1) + "." + simpleName : simpleName;
+    }
+
+    public record Result(boolean success, List<String> errors, Map<String, byte[]> classes) {}
+
+    static class SourceFile extends SimpleJavaFileObject {
+        private final String source;
+
+        SourceFile(String className, String source) {
+            super(URI.create("string:///" + className.replace('.', '/') + Kind.SOURCE.extension), Kind.SOURCE);
+            this.source = source;
+        }
+
+        @Override
+        public CharSequence getCharContent(boolean ignoreEncodingErrors) {
+            return source;
+        }
+    }
+
+    private static class ClassFile extends SimpleJavaFileObject {
+        private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+
+        ClassFile(String className) {
+            super(URI.create("mem:///" + className.replace('.', '/') + Kind.CLASS.extension), Kind.CLASS);
+        }
+
+        @Override
+        public OutputStream openOutputStream() {
+            return bytes;
+        }
+    }
+
+    private static class MemoryFileManager extends ForwardingJavaFileManager<StandardJavaFileManager> {
+        private final Map<String, ClassFile> outputs = new HashMap<>();
+
+        MemoryFileManager(StandardJavaFileManager fileManager) {
+            super(fileManager);
+        }
+
+        @Override
+        public JavaFileObject getJavaFileForOutput(Location location, String className,
+                                                   JavaFileObject.Kind kind, FileObject sibling) {
+            ClassFile file = new ClassFile(className);
+            outputs.put(className, file);
+            return file;
+        }
+
+        Map<String, byte[]> classes() {
+            Map<String, byte[]> classes = new HashMap<>();
+            outputs.forEach((name, file) -> classes.put(name, file.bytes.toByteArray()));
+            return classes;
+        }
+    }
+}
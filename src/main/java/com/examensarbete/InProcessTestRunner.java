@@ -0,0 +1,336 @@
+package com.examensarbete;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import org.junit.platform.engine.DiscoverySelector;
+import org.junit.platform.engine.TestExecutionResult;
+import org.junit.platform.engine.discovery.DiscoverySelectors;
+import org.junit.platform.launcher.Launcher;
+import org.junit.platform.launcher.LauncherDiscoveryRequest;
+import org.junit.platform.launcher.TestExecutionListener;
+import org.junit.platform.launcher.TestIdentifier;
+import org.junit.platform.launcher.core.LauncherDiscoveryRequestBuilder;
+import org.junit.platform.launcher.core.LauncherFactory;
+
+/**
+ * Verifies a patch without forking the build tool: the patched file is compiled in memory
+ * against the project's resolved class path, loaded in a fresh child class loader in front of
+ * the existing compiled classes, and the tests are run through the JUnit Platform launcher.
+ * Only Maven projects whose classes have already been compiled are supported; in every other
+ * case {@link #runTests} returns null and the caller falls back to {@link TestRunner}.
+ */
+public class InProcessTestRunner {
+    private static final String CLASSPATH_CACHE = ".assistant/classpath.txt";
+    private static final List<String> SHARED_PACKAGES = List.of(
+        "java.", "javax.", "jdk.", "sun.", "com.sun.", "org.junit.platform.", "org.opentest4j.", "org.apiguardian.");
+
+    /**
+     * Runs the tests of the module, with the patched file recompiled from its current content.
+     *
+     * @param moduleDir   Maven module containing the file
+     * @param patchedFile File that changed, or null to run against the compiled classes as they are
+     * @param verbose     Whether to print debug output
+     * @return whether all tests passed, or null if in-process execution is not possible
+     */
+    public static Boolean runTests(Path moduleDir, Path patchedFile, boolean verbose) throws Exception {
+        return runTests(moduleDir, patchedFile != null ? List.of(patchedFile) : List.of(), verbose);
+    }
+
+    /**
+     * Runs the tests of the module once, with all patched files recompiled together from their
+     * current content. Files from other modules would be compiled against the wrong class path
+     * and their dependents left untested, so such a change returns null.
+     *
+     * @param patchedFiles Files that changed; empty to run against the compiled classes as they are
+     */
+    public static Boolean runTests(Path moduleDir, List<Path> patchedFiles, boolean verbose) throws Exception {
+        Path module = moduleDir.toAbsolutePath().normalize();
+        if (patchedFiles.stream().anyMatch(patchedFile -> !PatchJournal.projectRootOf(patchedFile).equals(module))) {
+            if (verbose) {
+                System.out.println("[DEBUG] In-process tests need all changed files in one module");
+            }
+            return null;
+        }
+        Path classesDir = moduleDir.resolve("target").resolve("classes");
+        Path testClassesDir = moduleDir.resolve("target").resolve("test-classes");
+        if (TestRunner.determineBuildSystem(moduleDir.toFile()) != TestRunner.BuildSystem.MAVEN
+            || !Files.isDirectory(classesDir) || !Files.isDirectory(testClassesDir)) {
+            if (verbose) {
+                System.out.println("[DEBUG] In-process tests need a compiled Maven module");
+            }
+            return null;
+        }
+
+        long startTime = System.currentTimeMillis();
+        List<Path> dependencies = resolveClasspath(moduleDir, verbose);
+        if (dependencies == null) {
+            return null;
+        }
+
+        Map<String, byte[]> patchedClasses = Map.of();
+        if (!patchedFiles.isEmpty()) {
+            Map<String, String> sources = new LinkedHashMap<>();
+            for (Path patchedFile : patchedFiles) {
+                String source = Files.readString(patchedFile);
+                sources.put(InMemoryCompiler.className(source), source);
+            }
+            List<Path> compileClasspath = new ArrayList<>();
+            compileClasspath.add(classesDir);
+            compileClasspath.addAll(dependencies);
+            InMemoryCompiler.Result result = InMemoryCompiler.compile(sources, compileClasspath);
+            if (!result.success()) {
+                System.err.println("\n⛔ Compilation of the patched files failed:");
+                result.errors().forEach(error -> System.err.println("   " + error));
+                return false;
+            }
+            patchedClasses = result.classes();
+        }
+
+        List<URL> urls = new ArrayList<>();
+        urls.add(testClassesDir.toUri().toURL());
+        urls.add(classesDir.toUri().toURL());
+        for (Path dependency : dependencies) {
+            urls.add(dependency.toUri().toURL());
+        }
+
+        System.out.println("\n🔄 Starting in-process test execution...");
+        ClassLoader previous = Thread.currentThread().getContextClassLoader();
+        try (PatchedClassLoader loader = new PatchedClassLoader(urls.toArray(URL[]::new), patchedClasses,
+                InProcessTestRunner.class.getClassLoader())) {
+            Thread.currentThread().setContextClassLoader(loader);
+
+            LauncherDiscoveryRequest request = LauncherDiscoveryRequestBuilder.request()
+                .selectors(selectTests(testClassesDir, patchedFiles))
+                .build();
+            Launcher launcher = LauncherFactory.create();
+            ResultListener listener = new ResultListener(verbose);
+            // A patch can add an endless loop or a deadlock, so the tests run on a thread of their own
+            // and are only waited for until the deadline; a runaway daemon thread does not block exit
+            CompletableFuture<Void> run = new CompletableFuture<>();
+            Thread worker = new Thread(() -> {
+                try {
+                    launcher.execute(request, listener);
+                    run.complete(null);
+                } catch (Throwable e) {
+                    run.completeExceptionally(e);
+                }
+            }, "in-process-tests");
+            worker.setContextClassLoader(loader);
+            worker.setDaemon(true);
+            Deadline deadline = Deadline.current();
+            Runnable registration = deadline.onCancel(() -> run.cancel(true));
+            worker.start();
+            try {
+                run.get(Math.min(TimeUnit.MINUTES.toMillis(TestRunner.TEST_TIMEOUT_MINUTES), deadline.remainingMillis()),
+                    TimeUnit.MILLISECONDS);
+            } catch (TimeoutException | CancellationException e) {
+                worker.interrupt();
+                deadline.check();
+                System.err.println("\n⛔ Timeout after " + (System.currentTimeMillis() - startTime) / 1000 + " seconds!");
+                throw new RuntimeException("Test execution timed out");
+            } catch (ExecutionException e) {
+                throw e.getCause() instanceof Exception cause ? cause : e;
+            } finally {
+                registration.run();
+            }
+
+            long durationMillis = System.currentTimeMillis() - startTime;
+            System.out.println("\n✅ Test execution completed in " + String.format("%.1f", durationMillis / 1000.0) + " seconds");
+            if (listener.total.get() == 0) {
+                System.err.println("\n⛔ No tests were found or no test engine is on the project class path.");
+                return null;
+            }
+            return TestRunner.reportResults(listener.total.get(), listener.failed.get(),
+                listener.errors.get(), listener.skipped.get());
+        } finally {
+            Thread.currentThread().setContextClassLoader(previous);
+        }
+    }
+
+    /**
+     * Selects the test classes named after the patched classes, or the whole test output directory if there are none.
+     */
+    private static List<? extends DiscoverySelector> selectTests(Path testClassesDir, List<Path> patchedFiles)
+            throws IOException {
+        if (!patchedFiles.isEmpty()) {
+            String simpleNames = patchedFiles.stream()
+                .map(patchedFile -> Pattern.quote(patchedFile.getFileName().toString().replace(".java", "")))
+                .collect(Collectors.joining("|"));
+            try (Stream<Path> paths = Files.walk(testClassesDir)) {
+                List<String> testClasses = paths
+                    .filter(p -> p.getFileName().toString().matches("(" + simpleNames + ")(Test|Tests|IT|TestCase)\\.class"))
+                    .map(p -> testClassesDir.relativize(p).toString().replace(File.separatorChar, '.').replace(".class", ""))
+                    .toList();
+                if (!testClasses.isEmpty()) {
+                    return testClasses.stream().map(DiscoverySelectors::selectClass).toList();
+                }
+            }
+        }
+        return DiscoverySelectors.selectClasspathRoots(Set.of(testClassesDir));
+    }
+
+    /**
+     * Returns the module's test class path as resolved by Maven, cached until the pom changes.
+     */
+    private static List<Path> resolveClasspath(Path moduleDir, boolean verbose) throws Exception {
+        Path cache = moduleDir.resolve(CLASSPATH_CACHE);
+        Path pom = moduleDir.resolve("pom.xml");
+        if (!Files.exists(cache) || Files.getLastModifiedTime(cache).compareTo(Files.getLastModifiedTime(pom)) < 0) {
+            Files.createDirectories(cache.getParent());
+            System.out.println("🔄 Resolving project class path (cached for later runs)...");
+            ProcessBuilder pb = new ProcessBuilder(
+                System.getProperty("os.name").toLowerCase().contains("win") ? "mvn.cmd" : "mvn",
+                "-q", "dependency:build-classpath",
+                "-Dmdep.includeScope=test",
+                "-Dmdep.outputFile=" + cache.toAbsolutePath());
+            pb.directory(moduleDir.toFile());
+            pb.redirectErrorStream(true);
+            Process process = pb.start();
+            Runnable registration = Deadline.current().onCancel(() -> TestRunner.destroyProcessTree(process));
+            // Drained on its own thread so that the wait below is bounded even if Maven keeps writing
+            ByteArrayOutputStream output = new ByteArrayOutputStream();
+            Thread outputThread = new Thread(() -> {
+                try (InputStream in = process.getInputStream()) {
+                    in.transferTo(output);
+                } catch (IOException ignored) {
+                }
+            });
+            outputThread.start();
+            boolean completed;
+            try {
+                completed = process.waitFor(Math.min(TimeUnit.MINUTES.toMillis(5), Deadline.current().remainingMillis()),
+                    TimeUnit.MILLISECONDS);
+            } finally {
+                registration.run();
+            }
+            if (!completed) {
+                TestRunner.destroyProcessTree(process);
+            }
+            Deadline.current().check();
+            if (!completed || process.exitValue() != 0 || !Files.exists(cache)) {
+                if (verbose) {
+                    outputThread.join(TimeUnit.SECONDS.toMillis(1));
+                    System.out.println("[DEBUG] Class path resolution failed:\n" + output);
+                }
+                Files.deleteIfExists(cache);
+                return null;
+            }
+        }
+        String classpath = Files.readString(cache).trim();
+        if (classpath.isEmpty()) {
+            return List.of();
+        }
+        return Arrays.stream(classpath.split(File.pathSeparator)).map(Path::of).toList();
+    }
+
+    /**
+     * Child-first class loader that defines the freshly compiled classes in place of the ones on
+     * disk. JDK and JUnit Platform classes are shared with the launcher through the parent.
+     */
+    private static class PatchedClassLoader extends URLClassLoader {
+        private final Map<String, byte[]> patchedClasses;
+
+        PatchedClassLoader(URL[] urls, Map<String, byte[]> patchedClasses, ClassLoader parent) {
+            super(urls, parent);
+            this.patchedClasses = patchedClasses;
+        }
+
+        @Override
+        protected Class<?> loadClass(String name, boolean resolve) throws ClassNotFoundException {
+            synchronized (getClassLoadingLock(name)) {
+                Class<?> loaded = findLoadedClass(name);
+                if (loaded == null) {
+                    byte[] bytes = patchedClasses.get(name);
+                    if (bytes != null) {
+                        loaded = defineClass(name, bytes, 0, bytes.length);
+                    } else if (SHARED_PACKAGES.stream().anyMatch(name::startsWith)) {
+                        try {
+                            loaded = getParent().loadClass(name);
+                        } catch (ClassNotFoundException e) {
+                            loaded = findClass(name);
+                        }
+                    } else {
+                        try {
+                            loaded = findClass(name);
+                        } catch (ClassNotFoundException e) {
+                            loaded = getParent().loadClass(name);
+                        }
+                    }
+                }
+                if (resolve) {
+                    resolveClass(loaded);
+                }
+                return loaded;
+            }
+        }
+    }
+
+    /**
+     * Counts results the way surefire reports do: assertion failures as failures, other exceptions as errors.
+     */
+    private static class ResultListener implements TestExecutionListener {
+        private final boolean verbose;
+        private final Set<String> counted = new HashSet<>();
+        final AtomicInteger total = new AtomicInteger();
+        final AtomicInteger failed = new AtomicInteger();
+        final AtomicInteger errors = new AtomicInteger();
+        final AtomicInteger skipped = new AtomicInteger();
+
+        ResultListener(boolean verbose) {
+            this.verbose = verbose;
+        }
+
+        @Override
+        public void executionSkipped(TestIdentifier testIdentifier, String reason) {
+            if (testIdentifier.isTest() && counted.add(testIdentifier.getUniqueId())) {
+                total.incrementAndGet();
+                skipped.incrementAndGet();
+            }
+        }
+
+        @Override
+        public void executionFinished(TestIdentifier testIdentifier, TestExecutionResult result) {
+            if (!testIdentifier.isTest() || !counted.add(testIdentifier.getUniqueId())) {
+                return;
+            }
+            total.incrementAndGet();
+            switch (result.getStatus()) {
+                case SUCCESSFUL -> { }
+                case ABORTED -> skipped.incrementAndGet();
+                case FAILED -> {
+                    Throwable throwable = result.getThrowable().orElse(null);
+                    if (throwable instanceof AssertionError) {
+                        failed.incrementAndGet();
+                    } else {
+                        errors.incrementAndGet();
+                    }
+                    if (verbose) {
+                        System.out.println("[TEST FAILED] " + testIdentifier.getDisplayName() + ": " + throwable);
+                    }
+                }
+            }
+        }
+    }
+}
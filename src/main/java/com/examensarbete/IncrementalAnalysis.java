@@ -0,0 +1,350 @@
+package com.examensarbete;
+
+import com.sun.source.tree.CompilationUnitTree;
+import com.sun.source.tree.LineMap;
+import com.sun.source.tree.MethodTree;
+import com.sun.source.util.JavacTask;
+import com.sun.source.util.SourcePositions;
+import com.sun.source.util.TreeScanner;
+import com.sun.source.util.Trees;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import javax.tools.Diagnostic;
+import javax.tools.JavaCompiler;
+import javax.tools.ToolProvider;
+
+/**
+ * Re-analysis of a file after it changed: the current content is diffed line by line against
+ * the cached analysis, only the methods containing changes are sent in full (the bodies of the
+ * other methods are elided to their signatures), and earlier findings in unchanged methods are
+ * carried forward with remapped line numbers. Changes outside the methods need a full analysis.
+ */
+public class IncrementalAnalysis {
+    private static final double MAX_CHANGED_SHARE = 0.5;
+    private static final long MAX_DIFF_CELLS = 4_000_000L;
+    private static final String NO_BUGS_MARKER = "NO BUGS FOUND";
+    private static final Pattern LOCATION_LINE = Pattern.compile(":\\s*(\\d+)");
+    private static final Pattern SNIPPET_LINE_NUMBER = Pattern.compile("(?m)^(\\s*)(\\d+)(\\s*\\|)");
+    private static final Pattern LOCATION_LINE_NUMBERS = Pattern.compile("(?<=[:\\-]\\s?)(\\d+)");
+
+    /**
+     * Analyzes only what changed since the previous analysis.
+     *
+     * @param previous     Cached analysis of the file
+     * @param code         Current content of the file
+     * @param relatedTypes Signature stubs of related project types
+     * @param structured   Whether to request a JSON answer
+     * @param reuse        Whether the cached findings may be returned without a request if the file
+     *                     is unchanged; not when the findings are about to be applied without review
+     * @return the findings for the current content, or null if a full analysis is needed
+     */
+    public static AIClient.AIResponse analyze(String model, PromptBuilder promptBuilder, AnalysisCache.Entry previous,
+            String code, String relatedTypes, boolean structured, boolean reuse, boolean verbose) throws Exception {
+        String[] oldLines = previous.content.split("\n", -1);
+        String[] newLines = code.split("\n", -1);
+        int[] oldToNew = alignLines(oldLines, newLines);
+        boolean[] changed = changedLines(oldToNew, newLines.length);
+
+        if (previous.content.equals(code)) {
+            if (!reuse) {
+                return null;
+            }
+            List<AIClient.AIResponse.BugFix> cached = previous.bugFixes();
+            CodePatcher.SnippetPatch patch = CodePatcher.applySnippets(code, cached, verbose);
+            if (!patch.skipped().isEmpty()) {
+                return null;
+            }
+            System.out.println("♻️ Filen är oförändrad sedan senaste analysen - återanvänder " + cached.size() + " fynd.");
+            return new AIClient.AIResponse(cached, patch.code());
+        }
+
+        List<Span> methods = methodSpans(code);
+        if (methods == null) {
+            if (verbose) {
+                System.out.println("[DEBUG] File does not parse - falling back to full analysis");
+            }
+            return null;
+        }
+        // A changed field, constant or import can break methods that did not change themselves, and
+        // those would only be sent as signatures
+        for (int line = 1; line <= newLines.length; line++) {
+            int current = line;
+            if (changed[line - 1] && !newLines[line - 1].isBlank() && methods.stream().noneMatch(m -> m.contains(current))) {
+                System.out.println("🔄 Ändringar utanför metoderna (fält, konstanter, importer) - analyserar hela filen.");
+                return null;
+            }
+        }
+        List<Span> changedMethods = new ArrayList<>();
+        int changedMethodLines = 0;
+        for (Span method : methods) {
+            if (method.containsAny(changed)) {
+                changedMethods.add(method);
+                changedMethodLines += method.end() - method.start() + 1;
+            }
+        }
+        if (changedMethods.size() == methods.size() || changedMethodLines > newLines.length * MAX_CHANGED_SHARE) {
+            System.out.println("🔄 Stora ändringar sedan senaste analysen - analyserar hela filen.");
+            return null;
+        }
+
+        String partialCode = partialCode(newLines, methods, changedMethods);
+        int elidedLines = 0;
+        for (Span method : methods) {
+            if (!changedMethods.contains(method) && method.bodyStart() < method.end()) {
+                elidedLines += method.end() - method.bodyStart() - 1;
+            }
+        }
+        Prompt prompt = promptBuilder.buildIncrementalBugFindingPrompt(partialCode, relatedTypes, structured);
+        List<AIClient.AIResponse.BugFix> newFixes = request(model, promptBuilder, prompt, code, structured, verbose);
+        if (newFixes == null) {
+            System.out.println("⚠️ Kunde inte tolka svaret på den inkrementella analysen - analyserar hela filen.");
+            return null;
+        }
+
+        // Findings in methods that did not change still hold; move them to their new lines
+        List<AIClient.AIResponse.BugFix> bugFixes = new ArrayList<>();
+        for (AIClient.AIResponse.BugFix bugFix : previous.bugFixes()) {
+            int oldLine = findingLine(bugFix);
+            if (oldLine < 1 || oldLine > oldToNew.length || oldToNew[oldLine - 1] < 0) {
+                continue;
+            }
+            int newLine = oldToNew[oldLine - 1] + 1;
+            if (methods.stream().anyMatch(m -> m.contains(newLine)) && changedMethods.stream().noneMatch(m -> m.contains(newLine))) {
+                bugFixes.add(shift(bugFix, newLine - oldLine));
+            }
+        }
+        int carried = bugFixes.size();
+        bugFixes.addAll(newFixes);
+
+        // Without a complete file from the model, every fix must be placed in the file by its snippet
+        CodePatcher.SnippetPatch patch = CodePatcher.applySnippets(code, bugFixes, verbose);
+        if (!patch.skipped().isEmpty()) {
+            System.out.println("⚠️ " + patch.skipped().size() + " fynd kunde inte placeras entydigt i filen - analyserar hela filen.");
+            return null;
+        }
+
+        System.out.println("♻️ Inkrementell analys: " + changedMethods.size() + " ändrad(e) metod(er), "
+            + (code.lines().count() - elidedLines) + " av " + code.lines().count() + " rader skickade, "
+            + carried + " tidigare fynd behålls.");
+        return new AIClient.AIResponse(bugFixes, patch.code());
+    }
+
+    private static List<AIClient.AIResponse.BugFix> request(String model, PromptBuilder promptBuilder, Prompt prompt,
+            String code, boolean structured, boolean verbose) throws Exception {
+        if (structured) {
+            AIClient.AIResponse response = StructuredOutput.findBugs(model, promptBuilder, prompt, code, false, verbose);
+            return response != null ? response.getBugFixes() : null;
+        }
+        String response = AIClient.sendRequest(model, prompt, verbose);
+        AIClient.printUsage(model, response);
+        AIClient.AIResponse parsed = AIClient.parseResponse(model, response, verbose);
+        if (parsed != null) {
+            return parsed.getBugFixes();
+        }
+        String content = AIClient.extractContentFromApiResponse(model, response, verbose);
+        return content != null && content.contains(NO_BUGS_MARKER) ? List.of() : null;
+    }
+
+    /**
+     * Renders the file with line numbers, keeping changed methods and everything outside
+     * methods in full and eliding the bodies of unchanged methods.
+     */
+    private static String partialCode(String[] lines, List<Span> methods, List<Span> changedMethods) {
+        StringBuilder partial = new StringBuilder();
+        // A trailing newline leaves an empty last element that is not a line of its own
+        int lineCount = lines.length > 0 && lines[lines.length - 1].isEmpty() ? lines.length - 1 : lines.length;
+        int line = 1;
+        while (line <= lineCount) {
+            Span elided = null;
+            for (Span method : methods) {
+                if (method.start() == line && !changedMethods.contains(method) && method.bodyStart() < method.end()) {
+                    elided = method;
+                }
+            }
+            if (elided == null) {
+                partial.append(NumberedSource.linePrefix(line)).append(lines[line - 1]).append('\n');
+                line++;
+                continue;
+            }
+            for (int i = elided.start(); i <= elided.bodyStart(); i++) {
+                partial.append(NumberedSource.linePrefix(i)).append(lines[i - 1]).append('\n');
+            }
+            partial.append("    | ...\n");
+            partial.append(NumberedSource.linePrefix(elided.end())).append(lines[elided.end() - 1]).append('\n');
+            line = elided.end() + 1;
+        }
+        return partial.toString();
+    }
+
+    /**
+     * Aligns the lines of two versions of a file by their longest common subsequence, after
+     * trimming the common prefix and suffix.
+     *
+     * @return for each old line, the index of the same line in the new version, or -1 if it was removed or changed
+     */
+    static int[] alignLines(String[] oldLines, String[] newLines) {
+        int[] oldToNew = new int[oldLines.length];
+        Arrays.fill(oldToNew, -1);
+        int prefix = 0;
+        while (prefix < oldLines.length && prefix < newLines.length && oldLines[prefix].equals(newLines[prefix])) {
+            oldToNew[prefix] = prefix;
+            prefix++;
+        }
+        int suffix = 0;
+        while (suffix < oldLines.length - prefix && suffix < newLines.length - prefix
+            && oldLines[oldLines.length - 1 - suffix].equals(newLines[newLines.length - 1 - suffix])) {
+            oldToNew[oldLines.length - 1 - suffix] = newLines.length - 1 - suffix;
+            suffix++;
+        }
+
+        int n = oldLines.length - prefix - suffix;
+        int m = newLines.length - prefix - suffix;
+        if (n == 0 || m == 0 || (long) n * m > MAX_DIFF_CELLS) {
+            return oldToNew;
+        }
+        int[][] lcs = new int[n + 1][m + 1];
+        for (int i = n - 1; i >= 0; i--) {
+            for (int j = m - 1; j >= 0; j--) {
+                lcs[i][j] = oldLines[prefix + i].equals(newLines[prefix + j])
+                    ? lcs[i + 1][j + 1] + 1
+                    : Math.max(lcs[i + 1][j], lcs[i][j + 1]);
+            }
+        }
+        int i = 0;
+        int j = 0;
+        while (i < n && j < m) {
+            if (oldLines[prefix + i].equals(newLines[prefix + j])) {
+                oldToNew[prefix + i] = prefix + j;
+                i++;
+                j++;
+            } else if (lcs[i + 1][j] >= lcs[i][j + 1]) {
+                i++;
+            } else {
+                j++;
+            }
+        }
+        return oldToNew;
+    }
+
+    /**
+     * Marks new lines that were added or modified, plus the line following each deletion.
+     */
+    private static boolean[] changedLines(int[] oldToNew, int newLength) {
+        boolean[] changed = new boolean[newLength];
+        Arrays.fill(changed, true);
+        for (int target : oldToNew) {
+            if (target >= 0) {
+                changed[target] = false;
+            }
+        }
+        for (int i = 0; i < oldToNew.length; i++) {
+            if (oldToNew[i] < 0) {
+                int next = i + 1;
+                while (next < oldToNew.length && oldToNew[next] < 0) {
+                    next++;
+                }
+                int position = next < oldToNew.length ? oldToNew[next] : newLength - 1;
+                if (position >= 0) {
+                    changed[position] = true;
+                }
+            }
+        }
+        return changed;
+    }
+
+    /**
+     * Returns the line spans of all methods and constructors declared in the file's classes,
+     * not descending into method bodies, or null if the file does not parse.
+     */
+    private static List<Span> methodSpans(String code) throws Exception {
+        JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+        if (compiler == null) {
+            return null;
+        }
+        AtomicBoolean errors = new AtomicBoolean();
+        JavacTask task = (JavacTask) compiler.getTask(null, null,
+            diagnostic -> {
+                if (diagnostic.getKind() == Diagnostic.Kind.ERROR) {
+                    errors.set(true);
+                }
+            },
+            List.of("-proc:none"), null, List.of(new InMemoryCompiler.SourceFile(InMemoryCompiler.className(code), code)));
+        List<Span> spans = new ArrayList<>();
+        for (CompilationUnitTree unit : task.parse()) {
+            SourcePositions positions = Trees.instance(task).getSourcePositions();
+            LineMap lineMap = unit.getLineMap();
+            new TreeScanner<Void, Void>() {
+                @Override
+                public Void visitMethod(MethodTree node, Void unused) {
+                    long start = positions.getStartPosition(unit, node);
+                    long end = positions.getEndPosition(unit, node);
+                    if (start >= 0 && end >= 0) {
+                        int endLine = (int) lineMap.getLineNumber(end);
+                        int bodyStart = node.getBody() != null
+                            ? (int) lineMap.getLineNumber(positions.getStartPosition(unit, node.getBody()))
+                            : endLine;
+                        spans.add(new Span((int) lineMap.getLineNumber(start), bodyStart, endLine));
+                    }
+                    return null;
+                }
+            }.scan(unit, null);
+        }
+        return errors.get() ? null : spans;
+    }
+
+    private static int findingLine(AIClient.AIResponse.BugFix bugFix) {
+        Matcher location = LOCATION_LINE.matcher(bugFix.getBugPosition());
+        if (location.find()) {
+            return Integer.parseInt(location.group(1));
+        }
+        Matcher snippet = SNIPPET_LINE_NUMBER.matcher(bugFix.getOriginalCode());
+        return snippet.find() ? Integer.parseInt(snippet.group(2)) : -1;
+    }
+
+    private static AIClient.AIResponse.BugFix shift(AIClient.AIResponse.BugFix bugFix, int delta) {
+        if (delta == 0) {
+            return bugFix;
+        }
+        return new AIClient.AIResponse.BugFix(
+            shiftNumbers(bugFix.getBugPosition(), LOCATION_LINE_NUMBERS, 1, delta),
+            shiftNumbers(bugFix.getCorrectedCode(), SNIPPET_LINE_NUMBER, 2, delta),
+            bugFix.getBugType(),
+            bugFix.getExplanation(),
+            shiftNumbers(bugFix.getOriginalCode(), SNIPPET_LINE_NUMBER, 2, delta));
+    }
+
+    private static String shiftNumbers(String text, Pattern pattern, int group, int delta) {
+        Matcher matcher = pattern.matcher(text);
+        StringBuilder shifted = new StringBuilder();
+        while (matcher.find()) {
+            String number = String.valueOf(Integer.parseInt(matcher.group(group)) + delta);
+            String replacement = matcher.group().substring(0, matcher.start(group) - matcher.start())
+                + number + matcher.group().substring(matcher.end(group) - matcher.start());
+            matcher.appendReplacement(shifted, Matcher.quoteReplacement(replacement));
+        }
+        matcher.appendTail(shifted);
+        return shifted.toString();
+    }
+
+    /**
+     * Lines of a method: first line of its declaration, line its body opens on, and last line.
+     */
+    record Span(int start, int bodyStart, int end) {
+        boolean contains(int line) {
+            return line >= start && line <= end;
+        }
+
+        boolean containsAny(boolean[] changed) {
+            for (int line = start; line <= end && line <= changed.length; line++) {
+                if (changed[line - 1]) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+}
@@ -0,0 +1,65 @@
+package com.examensarbete;
+
+import java.util.Locale;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Latency distribution used by {@link MockProviderServer} to simulate provider response times.
+ * Specified as {@code <kind>:<parameters>} in milliseconds:
+ * <ul>
+ *   <li>{@code fixed:800}</li>
+ *   <li>{@code uniform:200-1500}</li>
+ *   <li>{@code normal:800,200} (mean, standard deviation)</li>
+ *   <li>{@code lognormal:800,0.5} (median, sigma)</li>
+ * </ul>
+ */
+public class LatencyModel {
+    private enum Kind { FIXED, UNIFORM, NORMAL, LOGNORMAL }
+
+    private final Kind kind;
+    private final double first;
+    private final double second;
+    private final String spec;
+
+    private LatencyModel(Kind kind, double first, double second, String spec) {
+        this.kind = kind;
+        this.first = first;
+        this.second = second;
+        this.spec = spec;
+    }
+
+    public static LatencyModel parse(String spec) {
+        String[] parts = spec.trim().split(":", 2);
+        if (parts.length == 1) {
+            return new LatencyModel(Kind.FIXED, Double.parseDouble(parts[0]), 0, spec);
+        }
+        String[] params = parts[1].split("[,-]");
+        try {
+            return switch (parts[0].toLowerCase(Locale.ROOT)) {
+                case "fixed" -> new LatencyModel(Kind.FIXED, Double.parseDouble(params[0]), 0, spec);
+                case "uniform" -> new LatencyModel(Kind.UNIFORM, Double.parseDouble(params[0]), Double.parseDouble(params[1]), spec);
+                case "normal" -> new LatencyModel(Kind.NORMAL, Double.parseDouble(params[0]), Double.parseDouble(params[1]), spec);
+                case "lognormal" -> new LatencyModel(Kind.LOGNORMAL, Double.parseDouble(params[0]), Double.parseDouble(params[1]), spec);
+                default -> throw new IllegalArgumentException("Unknown latency distribution: " + parts[0]);
+            };
+        } catch (ArrayIndexOutOfBoundsException | NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid latency specification: " + spec);
+        }
+    }
+
+    public long sampleMillis() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        double value = switch (kind) {
+            case FIXED -> first;
+            case UNIFORM -> first + random.nextDouble() * (second - first);
+            case NORMAL -> first + random.nextGaussian() * second;
+            case LOGNORMAL -> first * Math.exp(random.nextGaussian() * second);
+        };
+        return Math.max(0, Math.round(value));
+    }
+
+    @Override
+    public String toString() {
+        return spec;
+    }
+}
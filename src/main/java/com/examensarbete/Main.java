@@ -4,43 +4,114 @@ import picocli.CommandLine;
 
 import java.io.BufferedReader;
 import java.io.File;
+import java.io.IOException;
 import java.io.InputStreamReader;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.time.Duration;
 import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
-@CommandLine.Command(name = "assistant", version = "assistant 1.0", mixinStandardHelpOptions = true)
+@CommandLine.Command(name = "assistant", version = "assistant 1.0", mixinStandardHelpOptions = true,
+    subcommands = {MockProviderServer.class, BenchCommand.class})
 public class Main implements Callable<Integer> {
+    private static final int SHUTDOWN_GRACE_SECONDS = 5;
+    private static final int MAX_REFERENCED_FILES = 4;
 
     @CommandLine.Option(
     names = {"-m", "--model"}, 
-    description = "AI model to use (OpenAI, Claude, DeepSeek)", 
+    description = "AI model to use (OpenAI, Claude, DeepSeek, Mock)", 
     required = false
 )
     private String model;
 
-    @CommandLine.Option(names = {"-f", "--file"}, description = "Path to the Java file to analyze", required = true)
-    private File file;
+    @CommandLine.Option(names = {"-f", "--file"}, split = ",", description = "Path to the Java file to analyze, or a directory to analyze all Java files in it (hitta-buggar). Several files, separated by commas, are analyzed and fixed together (hitta-buggar, fixa-kod)", required = false)
+    private List<File> files;
+
+    @CommandLine.Option(names = {"--with-references"}, description = "Analyze and fix the file together with the project files declaring the types it uses (hitta-buggar, fixa-kod)", defaultValue = "false")
+    private boolean withReferences;
 
-    @CommandLine.Option(names = {"-c", "--command"}, description = "Command to execute (hitta-buggar, kor-test, fixa-kod)", required = true)
+    @CommandLine.Option(names = {"-c", "--command"}, description = "Command to execute (hitta-buggar, kor-test, fixa-kod, angra, gor-om)", required = false)
     private String command;
 
     @CommandLine.Option(names = {"-v", "--verbose"}, description = "Enable verbose output", defaultValue = "false")
     private boolean verbose;
 
+    @CommandLine.Option(names = {"--no-context"}, description = "Do not include signatures of related project types in the prompt", defaultValue = "false")
+    private boolean noContext;
+
+    @CommandLine.Option(names = {"--rollback-on-failure"}, description = "Revert the applied fix if tests fail afterwards (fixa-kod)", defaultValue = "false")
+    private boolean rollbackOnFailure;
+
+    @CommandLine.Option(names = {"--in-process"}, description = "Run tests in-process via the JUnit Platform instead of forking the build tool", defaultValue = "false")
+    private boolean inProcess;
+
+    @CommandLine.Option(names = {"--json-output"}, description = "Request schema-validated JSON answers instead of free text", defaultValue = "false")
+    private boolean jsonOutput;
+
+    @CommandLine.Option(names = {"--full"}, description = "Analyze the whole file even if only parts changed since the last analysis", defaultValue = "false")
+    private boolean full;
+
+    @CommandLine.Option(names = {"--concurrency"}, description = "Files analyzed at the same time when --file is a directory", defaultValue = "4")
+    private int concurrency;
+
+    @CommandLine.Option(names = {"--order"}, description = "Order of files when --file is a directory: ${COMPLETION-CANDIDATES}", defaultValue = "SMALLEST_FIRST")
+    private BatchScheduler.Order order;
+
+    @CommandLine.Option(names = {"--token-budget"}, description = "Maximum tokens spent on a directory run (0 = no limit)", defaultValue = "0")
+    private long tokenBudget;
+
+    @CommandLine.Option(names = {"--tokens-per-minute"}, description = "Maximum tokens per minute on a directory run (0 = no limit)", defaultValue = "0")
+    private long tokensPerMinute;
+
+    @CommandLine.Option(names = {"--resume"}, description = "Continue an interrupted directory run, skipping completed files and retrying failed ones", defaultValue = "false")
+    private boolean resume;
+
+    @CommandLine.Option(names = {"--watch"}, description = "Keep running and analyze the file, or the changed files below the directory, whenever they are saved (hitta-buggar)", defaultValue = "false")
+    private boolean watch;
+
+    @CommandLine.Option(names = {"--debounce"}, description = "Milliseconds a file must be left unchanged before --watch analyzes it", defaultValue = "500")
+    private long debounceMillis;
+
+    @CommandLine.Option(names = {"--no-triage"}, description = "Send every file of a directory run to the model instead of skipping and reordering files by local pre-screening", defaultValue = "false")
+    private boolean noTriage;
+
+    @CommandLine.Option(names = {"--timeout"}, description = "Seconds allowed per file, including tests (0 = no limit)", defaultValue = "0")
+    private long fileTimeoutSeconds;
+
+    @CommandLine.Option(names = {"--run-timeout"}, description = "Seconds allowed for the whole run (0 = no limit)", defaultValue = "0")
+    private long runTimeout;
+
     private final FileReader fileReader = new FileReader();
     private final PromptBuilder promptBuilder = new PromptBuilder();
     private final CodePatcher codePatcher = new CodePatcher();
     private final ResultLogger resultLogger = new ResultLogger();
+    private final Object outputLock = new Object();
+    private SymbolIndex symbolIndex;
+    private Deadline runDeadline;
+    // The file given with -f, or the first of several
+    private File file;
 
     public static void main(String[] args) {
-        int exitCode = new CommandLine(new Main()).execute(args);
+        int exitCode = new CommandLine(new Main()).setCaseInsensitiveEnumValuesAllowed(true).execute(args);
         System.exit(exitCode);
     }
 
     private String getProjectRoot() throws Exception {
         Path filePath = file.toPath().toAbsolutePath();
-        Path currentDir = filePath.getParent();
+        Path currentDir = Files.isDirectory(filePath) ? filePath : filePath.getParent();
         
         while (currentDir != null) {
             if (Files.exists(currentDir.resolve("pom.xml")) || 
@@ -52,8 +123,62 @@ public class Main implements Callable<Integer> {
         throw new RuntimeException("Project root (Maven/Gradle) not found for file: " + file);
     }
 
+    /**
+     * Returns signature stubs of the project types the file refers to, using the
+     * incrementally updated symbol index, or an empty string if unavailable. The index
+     * is brought up to date once per run, and again before every analysis in --watch mode.
+     */
+    private synchronized String getRelatedTypes(Path target) {
+        if (noContext) {
+            return "";
+        }
+        try {
+            SymbolIndex symbolIndex = getSymbolIndex();
+            String context = symbolIndex.contextFor(target);
+            if (verbose) {
+                System.out.println("[DEBUG] Symbol index: " + symbolIndex.size() + " files, "
+                    + symbolIndex.getReparsedFiles() + " re-parsed, " + context.length() + " chars of context");
+            }
+            return context;
+        } catch (Exception e) {
+            System.err.println("⚠️ Could not build symbol index: " + e.getMessage());
+            return "";
+        }
+    }
+
+    private synchronized SymbolIndex getSymbolIndex() throws Exception {
+        if (symbolIndex == null) {
+            symbolIndex = SymbolIndex.load(Path.of(getProjectRoot()));
+            symbolIndex.update();
+            symbolIndex.save();
+        }
+        return symbolIndex;
+    }
+
+    /**
+     * Re-parses the files saved since the index was last updated, so that a watched file that
+     * starts using a type, or a file created while watching, gets current related-type stubs.
+     */
+    private synchronized void refreshSymbolIndex() {
+        if (noContext || symbolIndex == null) {
+            return;
+        }
+        try {
+            if (symbolIndex.update() > 0) {
+                symbolIndex.save();
+            }
+        } catch (IOException e) {
+            System.err.println("⚠️ Could not update symbol index: " + e.getMessage());
+        }
+    }
+
     @Override
     public Integer call() throws Exception {
+        if (files == null || files.isEmpty() || command == null) {
+            System.out.println("Error: --file and --command are required");
+            return 1;
+        }
+        file = files.get(0);
         if (command.equalsIgnoreCase("hitta-buggar") || 
             command.equalsIgnoreCase("fixa-kod")) {
             if (model == null) {
@@ -61,29 +186,290 @@ public class Main implements Callable<Integer> {
                 return 1;
             }
         }
-        String code = fileReader.readFile(file.getPath());
-
-        switch (command.toLowerCase()) {
-            case "hitta-buggar":
-                findBugs(code);
-                break;
-            case "kor-test":
-                runTests();
-                break;
-            case "fixa-kod":
-                fixCode(code);
-                break;
-            default:
-                System.out.println("Ogiltigt kommando: " + command);
+
+        // Ctrl-C cancels the run: in-flight requests are aborted, build processes killed and
+        // half-applied fixes rolled back before the JVM exits
+        runDeadline = Deadline.of(runTimeout > 0 ? Duration.ofSeconds(runTimeout) : null);
+        CountDownLatch finished = new CountDownLatch(1);
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            runDeadline.cancel("interrupted");
+            try {
+                finished.await(SHUTDOWN_GRACE_SECONDS, TimeUnit.SECONDS);
+            } catch (InterruptedException ignored) {
+                Thread.currentThread().interrupt();
+            }
+        }));
+        Deadline.setCurrent(runDeadline);
+        try {
+            if (watch) {
+                return watchFiles();
+            }
+            if (files.size() > 1 || withReferences) {
+                try (Deadline fileDeadline = runDeadline.child(fileTimeout())) {
+                    Deadline.setCurrent(fileDeadline);
+                    return runMultiFileCommand();
+                }
+            }
+            if (file.isDirectory()) {
+                return findBugsInDirectory();
+            }
+            try (Deadline fileDeadline = runDeadline.child(fileTimeout())) {
+                Deadline.setCurrent(fileDeadline);
+                return runCommand();
+            }
+        } catch (CancellationException e) {
+            System.out.println("⛔ Avbröts: " + e.getMessage());
+            return 1;
+        } finally {
+            Deadline.setCurrent(null);
+            runDeadline.close();
+            finished.countDown();
+        }
+    }
+
+    private Duration fileTimeout() {
+        return fileTimeoutSeconds > 0 ? Duration.ofSeconds(fileTimeoutSeconds) : null;
+    }
+
+    private Integer runCommand() throws Exception {
+        UsageLedger.setCurrentFile(file.toPath());
+
+        PatchJournal journal = PatchJournal.forFile(file.toPath());
+        // Running the tests changes no files, so it neither waits for nor recovers the changes of another run
+        boolean writes = !command.equalsIgnoreCase("kor-test");
+        try (PatchJournal.Lock lock = writes ? lockJournal(journal) : null) {
+            if (writes && lock == null) {
                 return 1;
+            }
+            String code = fileReader.readFile(file.getPath());
+
+            switch (command.toLowerCase()) {
+                case "hitta-buggar":
+                    findBugs(code);
+                    break;
+                case "kor-test":
+                    runTests();
+                    break;
+                case "fixa-kod":
+                    fixCode(code);
+                    break;
+                case "angra":
+                    undo(journal);
+                    break;
+                case "gor-om":
+                    redo(journal);
+                    break;
+                default:
+                    System.out.println("Ogiltigt kommando: " + command);
+                    return 1;
+            }
+        }
+        if (UsageLedger.global().requests() > 1) {
+            UsageLedger.global().printSummary();
+        }
+        UsageLedger.global().append(PatchJournal.projectRootOf(file.toPath()));
+        return 0;
+    }
+
+    /**
+     * Takes the journal lock of the project and rolls back changes left pending by an interrupted
+     * run. Pending changes are only touched under the lock, since they may belong to a run in
+     * progress in another process.
+     *
+     * @return the lock, or null if another process holds it
+     */
+    private PatchJournal.Lock lockJournal(PatchJournal journal) throws IOException {
+        PatchJournal.Lock lock = journal.tryLock();
+        if (lock == null) {
+            System.out.println("⛔ Ett annat kommando ändrar redan filer i projektet - försök igen när det är klart.");
+            return null;
+        }
+        int recovered = journal.recover();
+        if (recovered > 0) {
+            System.out.println("↩️ Återställde " + recovered + " avbruten(a) ändring(ar) från journalen.");
+        }
+        return lock;
+    }
+
+    /**
+     * Reverts a fix whose tests failed, unless its files were edited since.
+     *
+     * @return whether the fix was reverted
+     */
+    private boolean rollbackFailedFix(PatchJournal.Transaction transaction) throws IOException {
+        try {
+            transaction.rollback();
+            System.out.println("↩️ Testerna misslyckades - ändringarna har återställts.");
+            return true;
+        } catch (PatchJournal.ConflictException e) {
+            System.out.println("⚠️ Testerna misslyckades, men ändringarna återställdes inte: " + e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * Runs hitta-buggar over every Java file below the directory without applying any changes,
+     * ordered and paced to the token limits by the {@link BatchScheduler}. Progress is kept in a
+     * {@link WorkQueue} so that an interrupted run can be continued with --resume.
+     */
+    private Integer findBugsInDirectory() throws Exception {
+        if (!command.equalsIgnoreCase("hitta-buggar")) {
+            System.out.println("Error: a directory can only be used with hitta-buggar");
+            return 1;
         }
+        Path dir = file.toPath().toAbsolutePath().normalize();
+        List<Path> files;
+        try (Stream<Path> paths = Files.walk(dir)) {
+            files = paths.filter(p -> p.toString().endsWith(".java"))
+                .filter(p -> !SymbolIndex.isSkipped(dir.relativize(p)))
+                .toList();
+        }
+        Path projectRoot = PatchJournal.projectRootOf(dir);
+        List<Path> ordered = BatchScheduler.order(files, order, projectRoot);
+        if (!noTriage) {
+            ordered = triage(dir, ordered, projectRoot);
+        }
+
+        BatchScheduler.Result result;
+        try (WorkQueue queue = WorkQueue.open(projectRoot, dir, ordered, resume)) {
+            List<Path> remaining = ordered.stream().filter(queue::isRemaining).toList();
+            if (resume) {
+                System.out.println("↩️ Återupptar: " + queue.count(WorkQueue.State.DONE) + " filer klara, "
+                    + remaining.size() + " kvar varav " + queue.count(WorkQueue.State.FAILED) + " misslyckade som försöks igen.");
+            }
+            System.out.println("🔍 Analyserar " + remaining.size() + " filer i " + dir);
+
+            // Every file is sent with the same instructions, so it pays to make them long enough to be cached
+            promptBuilder.setCachePadding(true);
+            BatchScheduler scheduler = new BatchScheduler(concurrency, tokenBudget, tokensPerMinute, UsageLedger.global());
+            result = scheduler.run(remaining, queue::backoffMillis, path -> {
+                queue.markInFlight(path);
+                AIClient.AIResponse response;
+                try (Deadline fileDeadline = runDeadline.child(fileTimeout())) {
+                    Deadline.setCurrent(fileDeadline);
+                    response = analyze(path, fileReader.readFile(path.toString()));
+                } catch (CancellationException e) {
+                    if (runDeadline.isCancelled()) {
+                        // Left in flight so that --resume picks it up without counting an attempt
+                        throw e;
+                    }
+                    queue.markFailed(path, e.getMessage());
+                    throw e;
+                } catch (Exception e) {
+                    queue.markFailed(path, String.valueOf(e.getMessage()));
+                    throw e;
+                } finally {
+                    Deadline.setCurrent(null);
+                }
+                if (response != null) {
+                    queue.markDone(path);
+                } else {
+                    queue.markFailed(path, "could not extract bug information from the response");
+                }
+                synchronized (outputLock) {
+                    printFindings(dir, path, response);
+                }
+            });
+
+            System.out.println("\nSAMMANFATTNING:");
+            System.out.println("Klara filer: " + queue.count(WorkQueue.State.DONE) + " av " + ordered.size());
+            System.out.println("Misslyckade filer: " + queue.count(WorkQueue.State.FAILED));
+            System.out.println("Överhoppade filer: " + result.skipped().size());
+            if (verbose) {
+                queue.failures().forEach(failure -> System.out.println("[DEBUG] Failed: " + failure));
+            }
+            if (queue.count(WorkQueue.State.DONE) < ordered.size()) {
+                System.out.println("Kör igen med --resume för att fortsätta med återstående filer.");
+            }
+        }
+        UsageLedger.global().printSummary();
+        UsageLedger.global().append(projectRoot);
+        return result.failed().isEmpty() ? 0 : 1;
+    }
+
+    /**
+     * Runs hitta-buggar on the file, or on the Java files below the directory, each time one is
+     * saved, until the run is interrupted or times out. Unchanged parts of a saved file are not
+     * analyzed again (see {@link IncrementalAnalysis}).
+     */
+    private Integer watchFiles() throws Exception {
+        if (!command.equalsIgnoreCase("hitta-buggar")) {
+            System.out.println("Error: --watch can only be used with hitta-buggar");
+            return 1;
+        }
+        Path target = file.toPath().toAbsolutePath().normalize();
+        Path dir = file.isDirectory() ? target : target.getParent();
+        Path projectRoot = PatchJournal.projectRootOf(target);
+        Predicate<Path> watched = file.isDirectory()
+            ? path -> path.startsWith(target) && path.toString().endsWith(".java")
+            : path -> path.equals(target);
+
+        promptBuilder.setCachePadding(true);
+        System.out.println("👀 Bevakar " + target + " - sparade ändringar analyseras automatiskt (Ctrl-C avslutar).");
+        try (SourceWatcher watcher = new SourceWatcher(projectRoot, watched, debounceMillis)) {
+            watcher.run(runDeadline, concurrency, fileTimeout(), path -> {
+                if (!Files.exists(path)) {
+                    return;
+                }
+                refreshSymbolIndex();
+                AIClient.AIResponse response = analyze(path, fileReader.readFile(path.toString()));
+                // A result for a version that has been saved over is not shown
+                Deadline.current().check();
+                synchronized (outputLock) {
+                    printFindings(dir, path, response);
+                }
+            });
+        }
+        UsageLedger.global().printSummary();
+        UsageLedger.global().append(projectRoot);
         return 0;
     }
 
+    /**
+     * Pre-screens the files locally with {@link Triage}: drops the files not worth a request,
+     * reporting why, and moves prioritised files to the front and downgraded files to the end
+     * while keeping the chosen order within each group.
+     */
+    private List<Path> triage(Path dir, List<Path> files, Path projectRoot) throws IOException {
+        Map<Path, Triage.Verdict> verdicts = Triage.screen(files, projectRoot, verbose);
+        List<Path> kept = new ArrayList<>();
+        int skipped = 0;
+        for (Path path : files) {
+            Triage.Verdict verdict = verdicts.get(path);
+            if (verdict.level() == Triage.Level.SKIP) {
+                skipped++;
+                System.out.println("⏭️ " + dir.relativize(path) + ": " + String.join(", ", verdict.reasons()));
+            } else {
+                kept.add(path);
+                if (verbose) {
+                    System.out.println("[DEBUG] Triage " + dir.relativize(path) + ": " + verdict.level()
+                        + " (" + verdict.score() + ") " + String.join(", ", verdict.reasons()));
+                }
+            }
+        }
+        kept.sort(Comparator.comparing((Path path) -> verdicts.get(path).level()));
+        long high = kept.stream().filter(path -> verdicts.get(path).level() == Triage.Level.HIGH).count();
+        long low = kept.stream().filter(path -> verdicts.get(path).level() == Triage.Level.LOW).count();
+        System.out.println("🧹 Förgranskning: " + skipped + " filer överhoppade, " + high + " prioriterade, "
+            + low + " nedprioriterade av " + files.size());
+        return kept;
+    }
+
+    private void printFindings(Path dir, Path path, AIClient.AIResponse response) {
+        if (response == null) {
+            System.out.println("\n📄 " + dir.relativize(path) + ": kunde inte extrahera bugginformation");
+            return;
+        }
+        System.out.println("\n📄 " + dir.relativize(path) + ": " + response.getBugFixes().size() + " fynd ("
+            + UsageLedger.global().forFile(path).totalTokens() + " tokens)");
+        for (AIClient.AIResponse.BugFix bugFix : response.getBugFixes()) {
+            System.out.println("   " + bugFix.getBugPosition() + " [" + bugFix.getBugType() + "] "
+                + bugFix.getExplanation().lines().findFirst().orElse(""));
+        }
+    }
+
     private void findBugs(String code) throws Exception {
-        String prompt = promptBuilder.buildBugFindingPrompt(code);
-        String response = AIClient.sendRequest(model, prompt, verbose);
-        AIClient.AIResponse parsedResponse = AIClient.parseResponse(response, verbose);
+        AIClient.AIResponse parsedResponse = analyze(file.toPath(), code);
 
         if (parsedResponse != null && !parsedResponse.getBugFixes().isEmpty()) {
             parsedResponse.printBugSummary();
@@ -95,9 +481,11 @@ public class Main implements Callable<Integer> {
             if (answer.trim().equalsIgnoreCase("y")) {
                 String completeFile = parsedResponse.getCompleteFile();
                 if (completeFile != null && !completeFile.isEmpty()) {
-                    // Write the complete file directly
-                    Files.writeString(file.toPath(), completeFile);
-                    System.out.println("✅ Ändringarna har applicerats.");
+                    if (CodePatcher.applyPatch(file.getPath(), completeFile, true)) {
+                        System.out.println("✅ Ändringarna har applicerats.");
+                    } else {
+                        System.out.println("❌ Ändringarna kunde inte appliceras.");
+                    }
                 } else {
                     System.out.println("❌ Kunde inte hitta den kompletta filen med ändringar.");
                 }
@@ -109,10 +497,56 @@ public class Main implements Callable<Integer> {
         }
     }
 
+    /**
+     * Asks the model for bugs in the code, as free text or, with --json-output, as schema-validated JSON.
+     * Unless --full is given, a file analyzed before is only re-analyzed where it changed. The findings
+     * of an unchanged file are reused without a request, except by fixa-kod, which applies them unreviewed.
+     */
+    private AIClient.AIResponse analyze(Path target, String code) throws Exception {
+        String relatedTypes = getRelatedTypes(target);
+        AnalysisCache cache = AnalysisCache.forFile(target);
+        AnalysisCache.Entry previous = full ? null : cache.load(target, model, jsonOutput, relatedTypes);
+
+        AIClient.AIResponse response = null;
+        if (previous != null) {
+            response = IncrementalAnalysis.analyze(model, promptBuilder, previous, code, relatedTypes, jsonOutput,
+                !command.equalsIgnoreCase("fixa-kod"), verbose);
+        }
+        if (response == null) {
+            if (jsonOutput) {
+                response = StructuredOutput.findBugs(model, promptBuilder, code, relatedTypes, verbose);
+            } else {
+                Prompt prompt = promptBuilder.buildBugFindingPrompt(code, relatedTypes);
+                String rawResponse = AIClient.sendRequest(model, prompt, verbose);
+                AIClient.printUsage(model, rawResponse);
+                response = AIClient.parseResponse(model, rawResponse, verbose);
+            }
+        }
+        if (response != null) {
+            cache.save(target, code, response.getBugFixes(), model, jsonOutput, relatedTypes);
+        }
+        return response;
+    }
+
+    private boolean runProjectTests(String projectPath) throws Exception {
+        return runProjectTests(projectPath, List.of(file.toPath()));
+    }
+
+    private boolean runProjectTests(String projectPath, List<Path> changedFiles) throws Exception {
+        if (inProcess) {
+            Boolean passed = InProcessTestRunner.runTests(Path.of(projectPath), changedFiles, verbose);
+            if (passed != null) {
+                return passed;
+            }
+            System.out.println("⚠️ Tester kan inte köras in-process - använder byggverktyget.");
+        }
+        return TestRunner.runTests(projectPath, changedFiles, verbose);
+    }
+
     private void runTests() throws Exception {
         String projectPath = getProjectRoot();
         try {
-            boolean testsPassed = TestRunner.runTests(projectPath, verbose);
+            boolean testsPassed = runProjectTests(projectPath);
             System.out.println("Testresultat: " + (testsPassed ? "ALLT GRÖNT ✅" : "MISSLYCKADES ❌"));
         } catch (RuntimeException e) {
             System.err.println("[ERROR] Test execution failed: " + e.getMessage());
@@ -125,12 +559,10 @@ public class Main implements Callable<Integer> {
         
         // Run initial tests exactly like kör-test
         System.out.println("\n=== KÖR TESTER INNAN KORRIGERING ===");
-        boolean initialTestsPassed = TestRunner.runTests(projectPath, verbose);
+        boolean initialTestsPassed = runProjectTests(projectPath);
         
         // Find bugs using hitta-bug logic
-        String bugFindingPrompt = promptBuilder.buildBugFindingPrompt(code);
-        String bugFindingResponse = AIClient.sendRequest(model, bugFindingPrompt, verbose);
-        AIClient.AIResponse bugFixResponse = AIClient.parseResponse(bugFindingResponse, verbose);
+        AIClient.AIResponse bugFixResponse = analyze(file.toPath(), code);
     
         if (bugFixResponse != null && !bugFixResponse.getBugFixes().isEmpty()) {
             // Print bug summary identical to hitta-bug
@@ -140,11 +572,25 @@ public class Main implements Callable<Integer> {
             System.out.println("\nApplying changes automatically...");
             String completeFile = bugFixResponse.getCompleteFile();
             if (completeFile != null && !completeFile.isEmpty()) {
-                CodePatcher.applyPatch(file.getPath(), completeFile, true);
+                PatchJournal.Transaction transaction = CodePatcher.applyPatches(
+                    PatchJournal.forProject(Path.of(projectPath)), Map.of(file.toPath(), completeFile));
+                if (transaction == null) {
+                    return;
+                }
                 
                 // Run post-fix tests for final report
                 System.out.println("\n=== KÖR TESTER EFTER KORRIGERING ===");
-                boolean finalTestsPassed = TestRunner.runTests(projectPath, verbose);
+                boolean finalTestsPassed;
+                try {
+                    finalTestsPassed = runProjectTests(projectPath);
+                } catch (RuntimeException e) {
+                    System.err.println("[ERROR] Test execution failed: " + e.getMessage());
+                    finalTestsPassed = false;
+                }
+                boolean rolledBack = false;
+                if (!finalTestsPassed && rollbackOnFailure) {
+                    rolledBack = rollbackFailedFix(transaction);
+                }
                 
                 // Log results for each bug fix
                 for (AIClient.AIResponse.BugFix bugFix : bugFixResponse.getBugFixes()) {
@@ -152,7 +598,7 @@ public class Main implements Callable<Integer> {
                         "debug.log",
                         bugFix.getBugPosition(),
                         bugFix.getCorrectedCode(),
-                        true,
+                        !rolledBack,
                         initialTestsPassed,
                         finalTestsPassed
                     );
@@ -169,4 +615,214 @@ public class Main implements Callable<Integer> {
             System.out.println("Ingen bugg hittades - ingen åtgärd vidtogs.");
         }
     }
-}
\ No newline at end of file
+
+    /**
+     * Runs hitta-buggar or fixa-kod on several related files at once: one request shows all of
+     * them, the answer carries a complete file per changed file, and the fixes are applied as
+     * a single journal transaction, verified (fixa-kod) by a single test run.
+     */
+    private Integer runMultiFileCommand() throws Exception {
+        if (!command.equalsIgnoreCase("hitta-buggar") && !command.equalsIgnoreCase("fixa-kod")) {
+            System.out.println("Error: several files can only be used with hitta-buggar and fixa-kod");
+            return 1;
+        }
+        List<Path> targets = multiFileTargets();
+        if (targets == null) {
+            return 1;
+        }
+        // One request covers all targets, so its tokens are not charged to any one of them
+        UsageLedger.setCurrentFile(null);
+        Path projectRoot = PatchJournal.projectRootOf(targets.get(0));
+        PatchJournal journal = PatchJournal.forProject(projectRoot);
+        try (PatchJournal.Lock lock = lockJournal(journal)) {
+            return lock != null ? runMultiFileCommand(targets, projectRoot, journal) : 1;
+        }
+    }
+
+    private Integer runMultiFileCommand(List<Path> targets, Path projectRoot, PatchJournal journal) throws Exception {
+        Map<Path, String> sources = new LinkedHashMap<>();
+        for (Path target : targets) {
+            sources.put(target, fileReader.readFile(target.toString()));
+        }
+        System.out.println("🔗 Analyserar " + targets.size() + " filer tillsammans: "
+            + targets.stream().map(target -> projectRoot.relativize(target).toString()).collect(Collectors.joining(", ")));
+
+        boolean fix = command.equalsIgnoreCase("fixa-kod");
+        String projectPath = fix ? getProjectRoot() : null;
+        boolean initialTestsPassed = false;
+        if (fix) {
+            System.out.println("\n=== KÖR TESTER INNAN KORRIGERING ===");
+            initialTestsPassed = runProjectTests(projectPath, targets);
+        }
+
+        AIClient.AIResponse response = analyzeFiles(projectRoot, sources);
+        if (response == null || response.getBugFixes().isEmpty()) {
+            System.out.println(fix
+                ? "Ingen bugg hittades - ingen åtgärd vidtogs."
+                : "❌ Ingen bugg hittades eller kunde inte extrahera bugginformation.");
+            return 0;
+        }
+        response.printBugSummary();
+
+        Map<Path, String> patches = matchCompleteFiles(projectRoot, sources, response.getCompleteFiles());
+        if (patches.isEmpty()) {
+            System.out.println(response.getCompleteFiles().isEmpty()
+                ? "❌ Kunde inte hitta de kompletta filerna med ändringar."
+                : "ℹ️ Svaret ändrar inga av filerna.");
+            return 0;
+        }
+        if (!fix) {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(System.in));
+            System.out.print("\n💭 Vill du applicera ändringarna i " + patches.size() + " fil(er)? (y/N): ");
+            String answer = reader.readLine();
+            if (answer == null || !answer.trim().equalsIgnoreCase("y")) {
+                System.out.println("❌ Ändringarna har inte applicerats.");
+            } else if (CodePatcher.applyPatches(journal, patches) != null) {
+                System.out.println("✅ Ändringarna har applicerats.");
+            } else {
+                System.out.println("❌ Ändringarna kunde inte appliceras.");
+            }
+        } else {
+            System.out.println("\nApplying changes automatically...");
+            PatchJournal.Transaction transaction = CodePatcher.applyPatches(journal, patches);
+            if (transaction == null) {
+                return 0;
+            }
+
+            // One verification run covering every changed file
+            System.out.println("\n=== KÖR TESTER EFTER KORRIGERING ===");
+            boolean finalTestsPassed;
+            try {
+                finalTestsPassed = runProjectTests(projectPath, List.copyOf(patches.keySet()));
+            } catch (RuntimeException e) {
+                System.err.println("[ERROR] Test execution failed: " + e.getMessage());
+                finalTestsPassed = false;
+            }
+            boolean rolledBack = false;
+            if (!finalTestsPassed && rollbackOnFailure) {
+                rolledBack = rollbackFailedFix(transaction);
+            }
+            for (AIClient.AIResponse.BugFix bugFix : response.getBugFixes()) {
+                resultLogger.logResult("debug.log", bugFix.getBugPosition(), bugFix.getCorrectedCode(),
+                    !rolledBack, initialTestsPassed, finalTestsPassed);
+            }
+
+            System.out.println("\nSAMMANFATTNING:");
+            System.out.println("Ändrade filer: " + patches.size());
+            System.out.println("Initiala tester: " + (initialTestsPassed ? "Lyckades" : "Misslyckades"));
+            System.out.println("Tester efter fix: " + (finalTestsPassed ? "Lyckades" : "Misslyckades"));
+        }
+        if (UsageLedger.global().requests() > 1) {
+            UsageLedger.global().printSummary();
+        }
+        UsageLedger.global().append(projectRoot);
+        return 0;
+    }
+
+    /**
+     * Returns the files given with -f and, with --with-references, the project files declaring
+     * the types they use, up to {@value #MAX_REFERENCED_FILES} of them; or null if a file cannot be used.
+     */
+    private List<Path> multiFileTargets() throws Exception {
+        Set<Path> targets = new LinkedHashSet<>();
+        for (File given : files) {
+            if (!given.isFile()) {
+                System.out.println("Error: " + given + " is not a file - several files cannot include a directory");
+                return null;
+            }
+            targets.add(given.toPath().toAbsolutePath().normalize());
+        }
+        if (withReferences) {
+            SymbolIndex index = getSymbolIndex();
+            int added = 0;
+            for (Path given : List.copyOf(targets)) {
+                for (Path referenced : index.referencedFiles(given)) {
+                    if (added < MAX_REFERENCED_FILES && Files.isRegularFile(referenced)
+                        && targets.add(referenced.toAbsolutePath().normalize())) {
+                        added++;
+                    }
+                }
+            }
+            if (added == 0) {
+                System.out.println("ℹ️ Inga refererade projektfiler hittades.");
+            }
+        }
+        return List.copyOf(targets);
+    }
+
+    /**
+     * Asks the model for bugs in all files with one request, as free text or, with --json-output,
+     * as schema-validated JSON. Files are shown by their path relative to the project root.
+     */
+    private AIClient.AIResponse analyzeFiles(Path projectRoot, Map<Path, String> sources) throws Exception {
+        Map<String, String> shown = new LinkedHashMap<>();
+        sources.forEach((path, code) -> shown.put(projectRoot.relativize(path).toString(), code));
+        String relatedTypes = getRelatedTypes(file.toPath());
+        if (jsonOutput) {
+            return StructuredOutput.findBugsInFiles(model, promptBuilder, shown, relatedTypes, verbose);
+        }
+        Prompt prompt = promptBuilder.buildMultiFileBugFindingPrompt(shown, relatedTypes, false);
+        String rawResponse = AIClient.sendRequest(model, prompt, verbose);
+        AIClient.printUsage(model, rawResponse);
+        return AIClient.parseResponse(model, rawResponse, verbose);
+    }
+
+    /**
+     * Maps the complete files of the answer to the analyzed files, by the path shown to the model
+     * or, failing that, by file name. Files the answer returns unchanged are left out.
+     */
+    private Map<Path, String> matchCompleteFiles(Path projectRoot, Map<Path, String> sources,
+                                                 Map<String, String> completeFiles) {
+        Map<Path, String> patches = new LinkedHashMap<>();
+        for (Map.Entry<String, String> completeFile : completeFiles.entrySet()) {
+            String name = completeFile.getKey();
+            List<Path> matches = sources.keySet().stream()
+                .filter(path -> projectRoot.relativize(path).toString().equals(name))
+                .toList();
+            if (matches.isEmpty()) {
+                matches = sources.keySet().stream()
+                    .filter(path -> !name.isEmpty() && path.getFileName().toString().equals(Path.of(name).getFileName().toString()))
+                    .toList();
+            }
+            if (matches.size() != 1) {
+                System.out.println("⚠️ Kan inte avgöra vilken fil \"" + name + "\" i svaret avser - hoppar över den.");
+                continue;
+            }
+            Path path = matches.get(0);
+            if (!completeFile.getValue().strip().equals(sources.get(path).strip())) {
+                patches.put(path, completeFile.getValue());
+            }
+        }
+        return patches;
+    }
+
+    private void undo(PatchJournal journal) throws Exception {
+        PatchJournal.Transaction transaction;
+        try {
+            transaction = journal.rollbackLast();
+        } catch (PatchJournal.ConflictException e) {
+            System.out.println("⛔ Ångrar inte: " + e.getMessage());
+            return;
+        }
+        if (transaction == null) {
+            System.out.println("Inget att ångra.");
+        } else {
+            System.out.println("↩️ Ångrade: " + transaction.getDescription());
+        }
+    }
+
+    private void redo(PatchJournal journal) throws Exception {
+        PatchJournal.Transaction transaction;
+        try {
+            transaction = journal.replayLast();
+        } catch (PatchJournal.ConflictException e) {
+            System.out.println("⛔ Gör inte om: " + e.getMessage());
+            return;
+        }
+        if (transaction == null) {
+            System.out.println("Inget att göra om.");
+        } else {
+            System.out.println("↪️ Gjorde om: " + transaction.getDescription());
+        }
+    }
+}
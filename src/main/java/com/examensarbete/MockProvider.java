@@ -0,0 +1,33 @@
+package com.examensarbete;
+
+/**
+ * OpenAI-compatible provider pointing at a local {@link MockProviderServer}.
+ * No API key is needed; use {@code MOCK_BASE_URL} to change the port.
+ */
+public class MockProvider extends ChatCompletionsProvider {
+
+    @Override
+    public String name() {
+        return "mock";
+    }
+
+    @Override
+    public String defaultBaseUrl() {
+        return "http://localhost:" + MockProviderServer.DEFAULT_PORT + "/v1";
+    }
+
+    @Override
+    public String defaultModel() {
+        return "mock-model";
+    }
+
+    @Override
+    public boolean requiresApiKey() {
+        return false;
+    }
+
+    @Override
+    public Limits limits() {
+        return new Limits(8192, 131072);
+    }
+}
@@ -0,0 +1,399 @@
+package com.examensarbete;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+import picocli.CommandLine;
+
+/**
+ * Local HTTP server that imitates the OpenAI chat completions and Anthropic
+ * messages endpoints. It replays canned responses, or echoes the analysed
+ * file back as a trivial fix when none are configured, after a configurable
+ * latency and with a configurable share of simulated failures.
+ */
+@CommandLine.Command(name = "mock-server", description = "Start a local mock AI provider for offline runs")
+public class MockProviderServer implements Callable<Integer> {
+    public static final int DEFAULT_PORT = 8089;
+    // Shortest prefix the real providers cache (Claude Sonnet/Opus, OpenAI)
+    static final int MIN_CACHEABLE_PREFIX_TOKENS = 1024;
+
+    private static final ObjectMapper JSON_MAPPER = new ObjectMapper();
+    private static final Pattern CODE_BLOCK_PATTERN = Pattern.compile("```[a-z]*\\n([\\s\\S]*?)```");
+    private static final Pattern LINE_NUMBER_PATTERN = Pattern.compile("(?m)^\\s*\\d+ \\| ?");
+    private static final Pattern FILE_BLOCK_PATTERN = Pattern.compile("(?m)^File: (\\S+)\\n```\\n([\\s\\S]*?)```");
+    private static final Pattern CLASS_NAME_PATTERN = Pattern.compile("\\b(?:class|interface|enum|record)\\s+(\\w+)");
+
+    @CommandLine.Option(names = {"-p", "--port"}, description = "Port to listen on", defaultValue = "" + DEFAULT_PORT)
+    private int port = DEFAULT_PORT;
+
+    @CommandLine.Option(names = {"--responses"}, description = "Directory with canned response texts, replayed in order")
+    private Path responsesDir;
+
+    @CommandLine.Option(names = {"--latency"}, description = "Latency distribution, e.g. fixed:800, uniform:200-1500, normal:800,200, lognormal:800,0.5",
+        defaultValue = "fixed:0", converter = LatencyConverter.class)
+    private LatencyModel latency = LatencyModel.parse("fixed:0");
+
+    @CommandLine.Option(names = {"--error-rate"}, description = "Share of requests answered with a server error (0.0-1.0)", defaultValue = "0.0")
+    private double errorRate;
+
+    private HttpServer server;
+    private ExecutorService executor;
+    private ScheduledExecutorService scheduler;
+    private List<String> cannedResponses = List.of();
+    private final AtomicLong requestCount = new AtomicLong();
+    private final Set<String> cachedPrefixes = ConcurrentHashMap.newKeySet();
+
+    public MockProviderServer() {
+    }
+
+    public MockProviderServer(int port, Path responsesDir, LatencyModel latency, double errorRate) {
+        this.port = port;
+        this.responsesDir = responsesDir;
+        this.latency = latency;
+        this.errorRate = errorRate;
+    }
+
+    @Override
+    public Integer call() throws Exception {
+        start();
+        System.out.println("🧪 Mock provider listening on http://localhost:" + getPort() + "/v1");
+        System.out.println("   Use -m mock, or point <MODEL>_BASE_URL at this address. Ctrl-C to stop.");
+        Runtime.getRuntime().addShutdownHook(new Thread(this::stop));
+        new CountDownLatch(1).await();
+        return 0;
+    }
+
+    public void start() throws IOException {
+        cannedResponses = loadCannedResponses(responsesDir);
+        scheduler = Executors.newScheduledThreadPool(Math.max(4, Runtime.getRuntime().availableProcessors()));
+        server = HttpServer.create(new InetSocketAddress("localhost", port), 0);
+        executor = Executors.newCachedThreadPool();
+        server.setExecutor(executor);
+        server.createContext("/", this::handle);
+        server.start();
+    }
+
+    public void stop() {
+        if (server != null) {
+            server.stop(0);
+        }
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+        }
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+    }
+
+    public int getPort() {
+        return server != null ? server.getAddress().getPort() : port;
+    }
+
+    public String getBaseUrl() {
+        return "http://localhost:" + getPort() + "/v1";
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        long sequence = requestCount.getAndIncrement();
+        byte[] requestBytes = exchange.getRequestBody().readAllBytes();
+        boolean anthropic = exchange.getRequestURI().getPath().endsWith("/messages");
+
+        scheduler.schedule(() -> respond(exchange, requestBytes, anthropic, sequence),
+            latency.sampleMillis(), TimeUnit.MILLISECONDS);
+    }
+
+    private void respond(HttpExchange exchange, byte[] requestBytes, boolean anthropic, long sequence) {
+        try {
+            if (errorRate > 0 && ThreadLocalRandom.current().nextDouble() < errorRate) {
+                ObjectNode error = JSON_MAPPER.createObjectNode();
+                error.putObject("error")
+                    .put("type", "server_error")
+                    .put("message", "Simulated failure from mock provider");
+                send(exchange, 500, JSON_MAPPER.writeValueAsBytes(error));
+                return;
+            }
+
+            JsonNode request = JSON_MAPPER.readTree(requestBytes);
+            String prompt = extractPrompt(request);
+            boolean structured = request.has("response_format") || request.has("tools");
+            String content = !cannedResponses.isEmpty()
+                ? cannedResponses.get((int) (sequence % cannedResponses.size()))
+                : structured ? echoJsonResponse(prompt) : echoResponse(prompt);
+
+            int promptTokens = Math.max(1, requestBytes.length / 4);
+            int completionTokens = Math.max(1, content.length() / 4);
+
+            // Simulate prompt caching of the system prefix: the first request writes it, later ones read it.
+            // Like the real providers, prefixes shorter than the minimum are not cached at all.
+            String system = extractSystem(request);
+            int prefixTokens = system.length() / 4;
+            boolean cacheable = prefixTokens >= MIN_CACHEABLE_PREFIX_TOKENS;
+            boolean cacheHit = cacheable && !cachedPrefixes.add(system);
+            int cacheRead = cacheHit ? prefixTokens : 0;
+            int cacheWrite = cacheable && !cacheHit && anthropic && request.path("system").toString().contains("cache_control")
+                ? prefixTokens : 0;
+            ObjectNode response = JSON_MAPPER.createObjectNode();
+            if (anthropic) {
+                response.put("type", "message");
+                response.put("role", "assistant");
+                JsonNode toolInput = structured ? readJsonObject(content) : null;
+                if (toolInput != null) {
+                    response.putArray("content").addObject()
+                        .put("type", "tool_use")
+                        .put("id", "toolu_mock_" + sequence)
+                        .put("name", request.path("tools").path(0).path("name").asText())
+                        .set("input", toolInput);
+                } else {
+                    response.putArray("content").addObject().put("type", "text").put("text", content);
+                }
+                response.putObject("usage")
+                    .put("input_tokens", promptTokens - cacheRead - cacheWrite)
+                    .put("cache_read_input_tokens", cacheRead)
+                    .put("cache_creation_input_tokens", cacheWrite)
+                    .put("output_tokens", completionTokens);
+            } else {
+                response.put("object", "chat.completion");
+                response.put("model", request.path("model").asText("mock-model"));
+                ObjectNode choice = response.putArray("choices").addObject();
+                choice.put("index", 0);
+                choice.putObject("message").put("role", "assistant").put("content", content);
+                choice.put("finish_reason", "stop");
+                ObjectNode usage = response.putObject("usage")
+                    .put("prompt_tokens", promptTokens)
+                    .put("completion_tokens", completionTokens)
+                    .put("total_tokens", promptTokens + completionTokens);
+                usage.putObject("prompt_tokens_details").put("cached_tokens", cacheRead);
+            }
+            send(exchange, 200, JSON_MAPPER.writeValueAsBytes(response));
+        } catch (Exception e) {
+            try {
+                send(exchange, 400, ("{\"error\":{\"message\":\"" + e.getClass().getSimpleName() + "\"}}")
+                    .getBytes(StandardCharsets.UTF_8));
+            } catch (IOException ignored) {
+                exchange.close();
+            }
+        }
+    }
+
+    private static void send(HttpExchange exchange, int status, byte[] body) throws IOException {
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(status, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+
+    /**
+     * Returns the text of the last user message, for both chat completions and messages requests.
+     */
+    private static String extractPrompt(JsonNode request) {
+        JsonNode messages = request.path("messages");
+        if (!messages.isArray() || messages.size() == 0) {
+            return "";
+        }
+        JsonNode content = messages.get(messages.size() - 1).path("content");
+        if (content.isArray()) {
+            StringBuilder text = new StringBuilder();
+            for (JsonNode item : content) {
+                text.append(item.path("text").asText());
+            }
+            return text.toString();
+        }
+        return content.asText();
+    }
+
+    /**
+     * Returns the system prompt, given either as Anthropic {@code system} field or as chat message with role system.
+     */
+    private static String extractSystem(JsonNode request) {
+        JsonNode system = request.path("system");
+        if (system.isArray()) {
+            StringBuilder text = new StringBuilder();
+            for (JsonNode item : system) {
+                text.append(item.path("text").asText());
+            }
+            return text.toString();
+        }
+        if (system.isTextual()) {
+            return system.asText();
+        }
+        for (JsonNode message : request.path("messages")) {
+            if ("system".equals(message.path("role").asText())) {
+                return message.path("content").asText();
+            }
+        }
+        return "";
+    }
+
+    /**
+     * Builds a well-formed answer that reports the first line as a bug and
+     * returns the analysed code unchanged as the complete file.
+     */
+    static String echoResponse(String prompt) {
+        String code = echoedCode(prompt);
+        String fileName = echoedFileName(code);
+        String firstLine = code.isEmpty() ? "" : code.lines().findFirst().orElse("");
+
+        Map<String, String> files = echoedFiles(prompt);
+        if (!files.isEmpty()) {
+            // A prompt showing several files gets one named complete file per file
+            Map.Entry<String, String> first = files.entrySet().iterator().next();
+            firstLine = first.getValue().lines().findFirst().orElse("");
+            StringBuilder answer = new StringBuilder("""
+                BUG LOCATION: %s:1
+                BUG TYPE: Simulated
+                EXPLANATION: Canned response from the mock provider.
+
+                ORIGINAL CODE:
+                ```java
+                %s
+                ```
+
+                CORRECTED CODE:
+                ```java
+                %s
+                ```
+                """.formatted(first.getKey(), firstLine, firstLine));
+            files.forEach((name, content) -> answer.append("\nCOMPLETE FILE: ").append(name)
+                .append("\n```java\n").append(content).append("\n```\n"));
+            return answer.toString();
+        }
+
+        return """
+            BUG LOCATION: %s:1
+            BUG TYPE: Simulated
+            EXPLANATION: Canned response from the mock provider.
+
+            ORIGINAL CODE:
+            ```java
+            %s
+            ```
+
+            CORRECTED CODE:
+            ```java
+            %s
+            ```
+
+            COMPLETE FILE:
+            ```java
+            %s
+            ```
+            """.formatted(fileName, firstLine, firstLine, code);
+    }
+
+    /**
+     * Same answer as {@link #echoResponse} in the JSON shape of the structured output schema.
+     */
+    static String echoJsonResponse(String prompt) throws IOException {
+        String code = echoedCode(prompt);
+        String firstLine = code.isEmpty() ? "" : code.lines().findFirst().orElse("");
+        ObjectNode answer = JSON_MAPPER.createObjectNode();
+        answer.putArray("bugs").addObject()
+            .put("location", echoedFileName(code) + ":1")
+            .put("type", "Simulated")
+            .put("explanation", "Canned response from the mock provider.")
+            .put("original", "1 | " + firstLine)
+            .put("corrected", "1 | " + firstLine);
+        Map<String, String> files = echoedFiles(prompt);
+        if (files.isEmpty()) {
+            answer.put("completeFile", code);
+        } else {
+            Map.Entry<String, String> first = files.entrySet().iterator().next();
+            String firstFileLine = first.getValue().lines().findFirst().orElse("");
+            ((ObjectNode) answer.get("bugs").get(0))
+                .put("location", first.getKey() + ":1")
+                .put("original", "1 | " + firstFileLine)
+                .put("corrected", "1 | " + firstFileLine);
+            ArrayNode completeFiles = answer.putArray("files");
+            files.forEach((name, content) -> completeFiles.addObject().put("file", name).put("completeFile", content));
+        }
+        return JSON_MAPPER.writeValueAsString(answer);
+    }
+
+    /**
+     * Returns the files of a prompt showing several files, keyed by path, with the line numbers stripped.
+     */
+    private static Map<String, String> echoedFiles(String prompt) {
+        Map<String, String> files = new LinkedHashMap<>();
+        Matcher matcher = FILE_BLOCK_PATTERN.matcher(prompt);
+        while (matcher.find()) {
+            files.put(matcher.group(1), LINE_NUMBER_PATTERN.matcher(matcher.group(2)).replaceAll("").stripTrailing());
+        }
+        return files;
+    }
+
+    /**
+     * Returns the last fenced code block of the prompt with the line numbers stripped.
+     */
+    private static String echoedCode(String prompt) {
+        String code = "";
+        Matcher matcher = CODE_BLOCK_PATTERN.matcher(prompt);
+        while (matcher.find()) {
+            code = matcher.group(1);
+        }
+        return LINE_NUMBER_PATTERN.matcher(code).replaceAll("").stripTrailing();
+    }
+
+    private static String echoedFileName(String code) {
+        Matcher classMatcher = CLASS_NAME_PATTERN.matcher(code);
+        return (classMatcher.find() ? classMatcher.group(1) : "Mock") + ".java";
+    }
+
+    private static JsonNode readJsonObject(String content) {
+        try {
+            JsonNode node = JSON_MAPPER.readTree(content);
+            return node != null && node.isObject() ? node : null;
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    private static List<String> loadCannedResponses(Path dir) throws IOException {
+        if (dir == null) {
+            return List.of();
+        }
+        List<String> responses = new ArrayList<>();
+        try (Stream<Path> files = Files.list(dir)) {
+            for (Path file : files.filter(Files::isRegularFile).sorted().toList()) {
+                responses.add(Files.readString(file));
+            }
+        }
+        if (responses.isEmpty()) {
+            throw new IllegalArgumentException("No canned responses found in " + dir);
+        }
+        return responses;
+    }
+
+    static class LatencyConverter implements CommandLine.ITypeConverter<LatencyModel> {
+        @Override
+        public LatencyModel convert(String value) {
+            return LatencyModel.parse(value);
+        }
+    }
+}
@@ -0,0 +1,249 @@
+package com.examensarbete;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import javax.xml.parsers.DocumentBuilderFactory;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+
+/**
+ * Module structure of a Maven reactor or Gradle multi-project build, used to build and test
+ * only the module containing a changed file plus the modules depending on it.
+ */
+public class ModuleGraph {
+    private static final Pattern GRADLE_INCLUDE = Pattern.compile("\\binclude\\b\\s*\\(?([^)\\n]*)\\)?");
+    private static final Pattern QUOTED = Pattern.compile("['\"]([^'\"]+)['\"]");
+    private static final Pattern GRADLE_PROJECT_DEPENDENCY = Pattern.compile("project\\s*\\(\\s*(?:path\\s*[:=]\\s*)?['\"](:[^'\"]+)['\"]");
+
+    private final Path rootDir;
+    private final TestRunner.BuildSystem buildSystem;
+    private final Map<String, Module> modules;
+
+    private ModuleGraph(Path rootDir, TestRunner.BuildSystem buildSystem, Map<String, Module> modules) {
+        this.rootDir = rootDir;
+        this.buildSystem = buildSystem;
+        this.modules = modules;
+    }
+
+    /**
+     * Discovers the outermost reactor or multi-project build that contains the given project directory.
+     */
+    public static ModuleGraph discover(Path projectDir) throws Exception {
+        Path moduleDir = projectDir.toAbsolutePath().normalize();
+        TestRunner.BuildSystem buildSystem = TestRunner.determineBuildSystem(moduleDir.toFile());
+        if (buildSystem == TestRunner.BuildSystem.MAVEN) {
+            return discoverMaven(moduleDir);
+        }
+        if (buildSystem == TestRunner.BuildSystem.GRADLE) {
+            return discoverGradle(moduleDir);
+        }
+        Map<String, Module> single = new LinkedHashMap<>();
+        single.put("", new Module("", moduleDir, Set.of()));
+        return new ModuleGraph(moduleDir, buildSystem, single);
+    }
+
+    public Path getRootDir() { return rootDir; }
+    public TestRunner.BuildSystem getBuildSystem() { return buildSystem; }
+    public boolean isMultiModule() { return modules.size() > 1; }
+
+    /**
+     * Returns the innermost module whose directory contains the file.
+     */
+    public Module moduleFor(Path file) {
+        Path absolute = file.toAbsolutePath().normalize();
+        Module best = null;
+        for (Module module : modules.values()) {
+            if (absolute.startsWith(module.dir())
+                && (best == null || module.dir().getNameCount() > best.dir().getNameCount())) {
+                best = module;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Returns the modules containing the files together with every module that transitively depends on them.
+     */
+    public Set<Module> affectedModules(List<Path> files) {
+        Set<Module> affected = new LinkedHashSet<>();
+        Deque<Module> queue = new ArrayDeque<>();
+        for (Path file : files) {
+            Module module = moduleFor(file);
+            if (module != null) {
+                queue.add(module);
+            }
+        }
+        while (!queue.isEmpty()) {
+            Module module = queue.poll();
+            if (affected.add(module)) {
+                for (Module candidate : modules.values()) {
+                    if (candidate.dependencies().contains(module.id())) {
+                        queue.add(candidate);
+                    }
+                }
+            }
+        }
+        return affected;
+    }
+
+    /**
+     * Directory holding the JUnit XML reports of the module.
+     */
+    public Path reportsDir(Module module) {
+        return buildSystem == TestRunner.BuildSystem.GRADLE
+            ? module.dir().resolve("build").resolve("test-results").resolve("test")
+            : module.dir().resolve("target").resolve("surefire-reports");
+    }
+
+    /**
+     * A module of the build, identified by {@code groupId:artifactId} for Maven and by project path for Gradle.
+     */
+    public record Module(String id, Path dir, Set<String> dependencies) {}
+
+    private static ModuleGraph discoverMaven(Path moduleDir) throws Exception {
+        Path rootDir = moduleDir;
+        for (Path candidate = moduleDir.getParent(); candidate != null; candidate = candidate.getParent()) {
+            if (!Files.exists(candidate.resolve("pom.xml"))) {
+                continue;
+            }
+            Map<String, Module> reactor = new LinkedHashMap<>();
+            collectMavenModules(candidate, reactor);
+            if (reactor.values().stream().anyMatch(m -> m.dir().equals(moduleDir))) {
+                rootDir = candidate;
+            }
+        }
+        Map<String, Module> modules = new LinkedHashMap<>();
+        collectMavenModules(rootDir, modules);
+        return new ModuleGraph(rootDir, TestRunner.BuildSystem.MAVEN, modules);
+    }
+
+    private static void collectMavenModules(Path dir, Map<String, Module> modules) throws Exception {
+        Path pom = dir.resolve("pom.xml");
+        if (!Files.exists(pom)) {
+            return;
+        }
+        DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+        factory.setNamespaceAware(false);
+        Document doc = factory.newDocumentBuilder().parse(pom.toFile());
+        Element project = doc.getDocumentElement();
+
+        String groupId = childText(project, "groupId");
+        Element parent = child(project, "parent");
+        if (groupId == null && parent != null) {
+            groupId = childText(parent, "groupId");
+        }
+        String id = groupId + ":" + childText(project, "artifactId");
+
+        Set<String> dependencies = new LinkedHashSet<>();
+        Element dependenciesElement = child(project, "dependencies");
+        if (dependenciesElement != null) {
+            for (Element dependency : children(dependenciesElement, "dependency")) {
+                String dependencyGroup = childText(dependency, "groupId");
+                if ("${project.groupId}".equals(dependencyGroup)) {
+                    dependencyGroup = groupId;
+                }
+                dependencies.add(dependencyGroup + ":" + childText(dependency, "artifactId"));
+            }
+        }
+        if (parent != null) {
+            dependencies.add(childText(parent, "groupId") + ":" + childText(parent, "artifactId"));
+        }
+        if (modules.containsKey(id)) {
+            return;
+        }
+        modules.put(id, new Module(id, dir.normalize(), dependencies));
+
+        Element modulesElement = child(project, "modules");
+        if (modulesElement != null) {
+            for (Element module : children(modulesElement, "module")) {
+                Path moduleDir = dir.resolve(module.getTextContent().trim()).normalize();
+                if (moduleDir.toString().endsWith(".xml")) {
+                    moduleDir = moduleDir.getParent();
+                }
+                collectMavenModules(moduleDir, modules);
+            }
+        }
+    }
+
+    private static ModuleGraph discoverGradle(Path moduleDir) throws Exception {
+        Path rootDir = moduleDir;
+        for (Path candidate = moduleDir; candidate != null; candidate = candidate.getParent()) {
+            if (Files.exists(candidate.resolve("settings.gradle")) || Files.exists(candidate.resolve("settings.gradle.kts"))) {
+                rootDir = candidate;
+            }
+        }
+
+        List<String> projectPaths = new ArrayList<>();
+        projectPaths.add(":");
+        for (String settingsName : List.of("settings.gradle", "settings.gradle.kts")) {
+            Path settings = rootDir.resolve(settingsName);
+            if (Files.exists(settings)) {
+                Matcher include = GRADLE_INCLUDE.matcher(Files.readString(settings));
+                while (include.find()) {
+                    Matcher quoted = QUOTED.matcher(include.group(1));
+                    while (quoted.find()) {
+                        String path = quoted.group(1);
+                        projectPaths.add(path.startsWith(":") ? path : ":" + path);
+                    }
+                }
+            }
+        }
+
+        Map<String, Module> modules = new LinkedHashMap<>();
+        for (String projectPath : projectPaths) {
+            Path dir = projectPath.equals(":")
+                ? rootDir
+                : rootDir.resolve(projectPath.substring(1).replace(':', File.separatorChar)).normalize();
+            Set<String> dependencies = new LinkedHashSet<>();
+            for (String buildName : List.of("build.gradle", "build.gradle.kts")) {
+                Path buildFile = dir.resolve(buildName);
+                if (Files.exists(buildFile)) {
+                    Matcher dependency = GRADLE_PROJECT_DEPENDENCY.matcher(Files.readString(buildFile));
+                    while (dependency.find()) {
+                        dependencies.add(dependency.group(1));
+                    }
+                }
+            }
+            modules.put(projectPath, new Module(projectPath, dir, dependencies));
+        }
+        return new ModuleGraph(rootDir, TestRunner.BuildSystem.GRADLE, modules);
+    }
+
+    private static Element child(Element parent, String name) {
+        for (Node node = parent.getFirstChild(); node != null; node = node.getNextSibling()) {
+            if (node instanceof Element element && element.getTagName().equals(name)) {
+                return element;
+            }
+        }
+        return null;
+    }
+
+    private static List<Element> children(Element parent, String name) {
+        List<Element> result = new ArrayList<>();
+        NodeList nodes = parent.getChildNodes();
+        for (int i = 0; i < nodes.getLength(); i++) {
+            if (nodes.item(i) instanceof Element element && element.getTagName().equals(name)) {
+                result.add(element);
+            }
+        }
+        return result;
+    }
+
+    private static String childText(Element parent, String name) {
+        Element element = child(parent, name);
+        return element != null ? element.getTextContent().trim() : null;
+    }
+}
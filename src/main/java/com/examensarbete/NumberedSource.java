@@ -0,0 +1,248 @@
+package com.examensarbete;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.JsonSerializable;
+import com.fasterxml.jackson.databind.SerializerProvider;
+import com.fasterxml.jackson.databind.jsontype.TypeSerializer;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Prompt text made of a fixed header, the source code with a line number in front of every
+ * line, and a fixed footer. The numbered lines are produced while the text is read, so the
+ * numbered copy of the source is never built: when a request is serialized, Jackson streams
+ * the text from {@link #reader()} straight into the request body and the only copy of the
+ * source held for the request is the one it was created from.
+ */
+public final class NumberedSource implements CharSequence, JsonSerializable {
+    private static final String SEPARATOR = " | ";
+
+    private final String header;
+    private final String code;
+    private final String footer;
+    // End of the code without trailing newlines, matching the lines of code.split("\n")
+    private final int codeEnd;
+    // Texts read one after the other instead of the above, for a prompt showing several files
+    private final List<CharSequence> parts;
+    // Length of the numbered text, counted without building it
+    private final int length;
+    // The whole text, built on first random access only; requests read the text as a stream
+    private String text;
+
+    public NumberedSource(String header, String code, String footer) {
+        this.header = header;
+        this.code = code;
+        this.footer = footer;
+        int end = code.length();
+        while (end > 0 && code.charAt(end - 1) == '\n') {
+            end--;
+        }
+        this.codeEnd = end;
+        this.parts = null;
+
+        int lines = end > 0 ? 1 : code.isEmpty() ? 1 : 0;
+        for (int newline = code.indexOf('\n'); newline >= 0 && newline < end; newline = code.indexOf('\n', newline + 1)) {
+            lines++;
+        }
+        // Every line gets a prefix and a newline; the newlines between the lines are the ones of the code
+        int numbered = lines == 0 ? 0 : end - (lines - 1) + lines;
+        for (int line = 1; line <= lines; line++) {
+            numbered += linePrefix(line).length();
+        }
+        this.length = header.length() + numbered + footer.length();
+    }
+
+    private NumberedSource(List<CharSequence> parts) {
+        this.header = "";
+        this.code = "";
+        this.footer = "";
+        this.codeEnd = 0;
+        this.parts = List.copyOf(parts);
+        this.length = this.parts.stream().mapToInt(CharSequence::length).sum();
+    }
+
+    /**
+     * Joins plain texts and numbered sources into one text that is still read lazily.
+     */
+    public static NumberedSource concat(List<? extends CharSequence> parts) {
+        return new NumberedSource(new ArrayList<>(parts));
+    }
+
+    /**
+     * Returns the number as it is put in front of a line: right-aligned to three characters,
+     * followed by {@code " | "}.
+     */
+    static String linePrefix(int lineNumber) {
+        String digits = Integer.toString(lineNumber);
+        return "   ".substring(Math.min(3, digits.length())) + digits + SEPARATOR;
+    }
+
+    /**
+     * Returns a reader over the text that numbers the lines as it goes.
+     */
+    public Reader reader() {
+        return parts != null ? new ConcatenatedReader() : new NumberedReader();
+    }
+
+    @Override
+    public void serialize(JsonGenerator generator, SerializerProvider serializers) throws IOException {
+        generator.writeString(reader(), -1);
+    }
+
+    @Override
+    public void serializeWithType(JsonGenerator generator, SerializerProvider serializers, TypeSerializer typeSerializer)
+            throws IOException {
+        serialize(generator, serializers);
+    }
+
+    @Override
+    public int length() {
+        return length;
+    }
+
+    @Override
+    public char charAt(int index) {
+        return text().charAt(index);
+    }
+
+    @Override
+    public CharSequence subSequence(int start, int end) {
+        return text().subSequence(start, end);
+    }
+
+    /**
+     * Returns the whole text, built once for callers that index into it.
+     */
+    private String text() {
+        String built = text;
+        if (built == null) {
+            built = toString();
+            text = built;
+        }
+        return built;
+    }
+
+    /**
+     * Builds the whole text; only meant for logging and tests, requests stream it instead.
+     */
+    @Override
+    public String toString() {
+        if (text != null) {
+            return text;
+        }
+        StringBuilder builder = new StringBuilder(length);
+        char[] buffer = new char[8192];
+        try (Reader reader = reader()) {
+            int read;
+            while ((read = reader.read(buffer, 0, buffer.length)) > 0) {
+                builder.append(buffer, 0, read);
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return builder.toString();
+    }
+
+    /**
+     * Reads the parts in order, numbered sources through their own readers.
+     */
+    private class ConcatenatedReader extends Reader {
+        private int index = -1;
+        private Reader current = Reader.nullReader();
+
+        @Override
+        public int read(char[] buffer, int offset, int length) throws IOException {
+            while (true) {
+                int read = current.read(buffer, offset, length);
+                if (read != -1 || ++index == parts.size()) {
+                    return read;
+                }
+                CharSequence part = parts.get(index);
+                current = part instanceof NumberedSource numbered ? numbered.reader() : new StringReader(part.toString());
+            }
+        }
+
+        @Override
+        public void close() {
+            index = parts.size();
+            current = Reader.nullReader();
+        }
+    }
+
+    /**
+     * Reads the header, then the code line by line with the line prefix in front of each line,
+     * then the footer. Each step is a range of a string copied directly into the caller's buffer.
+     */
+    private class NumberedReader extends Reader {
+        private String segment = header;
+        private int position;
+        private int segmentEnd = header.length();
+        // Next step: 0 = line prefix, 1 = line, 2 = newline, 3 = footer, 4 = end
+        private int next = code.isEmpty() || codeEnd > 0 ? 0 : 3;
+        private int lineNumber;
+        private int lineStart;
+
+        @Override
+        public int read(char[] buffer, int offset, int length) {
+            if (length == 0) {
+                return 0;
+            }
+            int copied = 0;
+            while (copied < length) {
+                if (position == segmentEnd && !advance()) {
+                    break;
+                }
+                int count = Math.min(length - copied, segmentEnd - position);
+                segment.getChars(position, position + count, buffer, offset + copied);
+                position += count;
+                copied += count;
+            }
+            return copied == 0 ? -1 : copied;
+        }
+
+        private boolean advance() {
+            switch (next) {
+                case 0 -> {
+                    set(linePrefix(++lineNumber), 0, -1);
+                    next = 1;
+                }
+                case 1 -> {
+                    int lineEnd = code.indexOf('\n', lineStart);
+                    if (lineEnd < 0 || lineEnd > codeEnd) {
+                        lineEnd = codeEnd;
+                    }
+                    set(code, lineStart, lineEnd);
+                    lineStart = lineEnd + 1;
+                    next = 2;
+                }
+                case 2 -> {
+                    set("\n", 0, -1);
+                    next = lineStart <= codeEnd && codeEnd > 0 ? 0 : 3;
+                }
+                case 3 -> {
+                    set(footer, 0, -1);
+                    next = 4;
+                }
+                default -> {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private void set(String text, int start, int end) {
+            segment = text;
+            position = start;
+            segmentEnd = end < 0 ? text.length() : end;
+        }
+
+        @Override
+        public void close() {
+            next = 4;
+            position = segmentEnd;
+        }
+    }
+}
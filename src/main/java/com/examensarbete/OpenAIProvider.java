@@ -0,0 +1,33 @@
+package com.examensarbete;
+
+/**
+ * OpenAI chat completions. Set {@code OPENAI_BASE_URL} to target any
+ * OpenAI-compatible gateway.
+ */
+public class OpenAIProvider extends ChatCompletionsProvider {
+
+    @Override
+    public String name() {
+        return "openai";
+    }
+
+    @Override
+    public String defaultBaseUrl() {
+        return "https://api.openai.com/v1";
+    }
+
+    @Override
+    public String defaultModel() {
+        return "gpt-4.1";
+    }
+
+    @Override
+    public Limits limits() {
+        return new Limits(32768, 1047576);
+    }
+
+    @Override
+    protected boolean sendsMaxTokens() {
+        return false;
+    }
+}
@@ -0,0 +1,410 @@
+package com.examensarbete;
+
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+
+/**
+ * Journal of applied patches kept in {@code .assistant/journal} under the project root.
+ * Every transaction stores the pre- and post-image of each file it touches before the file
+ * is replaced through a temp file and an atomic move, so a patch spanning several files can
+ * be rolled back or replayed instantly, and a transaction interrupted by a crash is rolled
+ * back on the next start. Rollback and replay refuse to overwrite files that were edited since,
+ * and a lock file keeps two processes from working on the same journal at once.
+ */
+public class PatchJournal {
+    private static final ObjectMapper JSON_MAPPER = new ObjectMapper()
+        .enable(SerializationFeature.INDENT_OUTPUT)
+        .configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+    private static final String JOURNAL_DIR = ".assistant/journal";
+    private static final String MANIFEST = "manifest.json";
+    private static final String LOCK_FILE = "lock";
+    private static final int MAX_TRANSACTIONS = 50;
+    private static final AtomicInteger SEQUENCE = new AtomicInteger();
+
+    public enum State { PENDING, COMMITTED, ROLLED_BACK, ABANDONED }
+
+    private final Path journalDir;
+
+    private PatchJournal(Path journalDir) {
+        this.journalDir = journalDir;
+    }
+
+    public static PatchJournal forProject(Path projectRoot) {
+        return new PatchJournal(projectRoot.resolve(JOURNAL_DIR));
+    }
+
+    /**
+     * Opens the journal of the Maven/Gradle project containing the file, or of its directory
+     * if it is not part of a project.
+     */
+    public static PatchJournal forFile(Path file) {
+        return forProject(projectRootOf(file));
+    }
+
+    /**
+     * Returns the nearest directory containing the file (or directory) with a Maven or Gradle
+     * build, or the file's own directory if there is none.
+     */
+    static Path projectRootOf(Path file) {
+        Path absolute = file.toAbsolutePath().normalize();
+        Path dir = Files.isDirectory(absolute) ? absolute : absolute.getParent();
+        for (Path current = dir; current != null; current = current.getParent()) {
+            if (Files.exists(current.resolve("pom.xml")) || Files.exists(current.resolve("build.gradle"))
+                || Files.exists(current.resolve("build.gradle.kts"))) {
+                return current;
+            }
+        }
+        return dir;
+    }
+
+    public Transaction begin(String description) throws IOException {
+        String id = String.format("%013d-%04d", System.currentTimeMillis(), SEQUENCE.incrementAndGet() % 10000);
+        Path dir = journalDir.resolve(id);
+        Files.createDirectories(dir);
+        Manifest manifest = new Manifest();
+        manifest.id = id;
+        manifest.description = description;
+        manifest.createdAt = Instant.now().toString();
+        manifest.state = State.PENDING;
+        Transaction transaction = new Transaction(dir, manifest);
+        transaction.saveManifest();
+        prune();
+        return transaction;
+    }
+
+    /**
+     * Takes the journal lock, which is held by a process for as long as it may apply, roll
+     * back or recover transactions.
+     *
+     * @return the lock, to be closed when done, or null if another process holds it
+     */
+    public Lock tryLock() throws IOException {
+        Files.createDirectories(journalDir);
+        FileChannel channel = FileChannel.open(journalDir.resolve(LOCK_FILE), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        try {
+            if (channel.tryLock() != null) {
+                return new Lock(channel);
+            }
+        } catch (OverlappingFileLockException e) {
+            // Held by another run in this JVM
+        }
+        channel.close();
+        return null;
+    }
+
+    /**
+     * Rolls back transactions left pending by an interrupted run. Must only be called while
+     * holding the {@link #tryLock lock}, since a pending transaction may otherwise belong to a
+     * run in progress. A transaction whose files were edited since is abandoned, leaving the
+     * edits in place.
+     *
+     * @return the number of recovered transactions
+     */
+    public int recover() throws IOException {
+        int recovered = 0;
+        for (Transaction transaction : transactions()) {
+            if (transaction.getState() == State.PENDING) {
+                try {
+                    transaction.rollback();
+                    recovered++;
+                } catch (ConflictException e) {
+                    System.err.println("⚠️ " + e.getMessage() + " - the interrupted change is left as it is");
+                    transaction.abandon();
+                }
+            }
+        }
+        return recovered;
+    }
+
+    /**
+     * Rolls back the most recent committed transaction.
+     *
+     * @return the rolled back transaction, or null if there was none
+     */
+    public Transaction rollbackLast() throws IOException {
+        List<Transaction> transactions = transactions();
+        for (int i = transactions.size() - 1; i >= 0; i--) {
+            if (transactions.get(i).getState() == State.COMMITTED) {
+                transactions.get(i).rollback();
+                return transactions.get(i);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Re-applies the oldest rolled back transaction after the last committed one, so that
+     * successive calls redo the changes in the order they were first made.
+     *
+     * @return the replayed transaction, or null if there was none
+     */
+    public Transaction replayLast() throws IOException {
+        List<Transaction> transactions = transactions();
+        int from = transactions.size();
+        while (from > 0 && transactions.get(from - 1).getState() != State.COMMITTED) {
+            from--;
+        }
+        for (Transaction transaction : transactions.subList(from, transactions.size())) {
+            if (transaction.getState() == State.ROLLED_BACK) {
+                transaction.replay();
+                return transaction;
+            }
+        }
+        return null;
+    }
+
+    private List<Transaction> transactions() throws IOException {
+        List<Transaction> transactions = new ArrayList<>();
+        if (!Files.isDirectory(journalDir)) {
+            return transactions;
+        }
+        try (Stream<Path> dirs = Files.list(journalDir)) {
+            for (Path dir : dirs.filter(Files::isDirectory).sorted().toList()) {
+                Path manifestFile = dir.resolve(MANIFEST);
+                if (Files.exists(manifestFile)) {
+                    transactions.add(new Transaction(dir, JSON_MAPPER.readValue(manifestFile.toFile(), Manifest.class)));
+                }
+            }
+        }
+        return transactions;
+    }
+
+    private void prune() throws IOException {
+        List<Transaction> transactions = transactions();
+        for (int i = 0; i < transactions.size() - MAX_TRANSACTIONS; i++) {
+            if (transactions.get(i).getState() != State.PENDING) {
+                deleteRecursively(transactions.get(i).dir);
+            }
+        }
+    }
+
+    /**
+     * Replaces the file content by writing a synced temp file next to it and moving it into place.
+     * The temp file is given the permissions of the file it replaces.
+     */
+    static void atomicWrite(Path target, byte[] content) throws IOException {
+        Path parent = target.toAbsolutePath().getParent();
+        Files.createDirectories(parent);
+        Path temp = Files.createTempFile(parent, "." + target.getFileName(), ".tmp");
+        try {
+            if (Files.exists(target)) {
+                try {
+                    Files.setPosixFilePermissions(temp, Files.getPosixFilePermissions(target));
+                } catch (UnsupportedOperationException e) {
+                    // Not a POSIX file system: there are no permission bits to keep
+                }
+            }
+            try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                ByteBuffer buffer = ByteBuffer.wrap(content);
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+                channel.force(true);
+            }
+            try {
+                Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    static void deleteRecursively(Path dir) throws IOException {
+        try (Stream<Path> paths = Files.walk(dir)) {
+            for (Path path : paths.sorted(Comparator.reverseOrder()).toList()) {
+                Files.deleteIfExists(path);
+            }
+        }
+    }
+
+    /**
+     * A group of file writes that is applied, rolled back and replayed as one unit.
+     */
+    public static class Transaction {
+        private final Path dir;
+        private final Manifest manifest;
+
+        private Transaction(Path dir, Manifest manifest) {
+            this.dir = dir;
+            this.manifest = manifest;
+        }
+
+        public String getId() { return manifest.id; }
+        public String getDescription() { return manifest.description; }
+        public State getState() { return manifest.state; }
+
+        public List<Path> getFiles() {
+            return manifest.entries.stream().map(entry -> Path.of(entry.path)).toList();
+        }
+
+        /**
+         * Records the pre-image of the file, if not already recorded, and atomically writes the new content.
+         */
+        public void write(Path file, String content) throws IOException {
+            if (manifest.state != State.PENDING) {
+                throw new IllegalStateException("Transaction " + manifest.id + " is " + manifest.state);
+            }
+            Path absolute = file.toAbsolutePath().normalize();
+            Entry entry = manifest.entries.stream()
+                .filter(e -> e.path.equals(absolute.toString()))
+                .findFirst()
+                .orElse(null);
+            if (entry == null) {
+                entry = new Entry();
+                entry.path = absolute.toString();
+                int index = manifest.entries.size();
+                if (Files.exists(absolute)) {
+                    entry.preImage = index + ".pre";
+                    atomicWrite(dir.resolve(entry.preImage), Files.readAllBytes(absolute));
+                }
+                entry.postImage = index + ".post";
+                manifest.entries.add(entry);
+            }
+            byte[] bytes = content.getBytes(StandardCharsets.UTF_8);
+            atomicWrite(dir.resolve(entry.postImage), bytes);
+            saveManifest();
+            atomicWrite(absolute, bytes);
+        }
+
+        public void commit() throws IOException {
+            manifest.state = State.COMMITTED;
+            saveManifest();
+        }
+
+        /**
+         * Restores every file to its pre-image, removing files the transaction created.
+         *
+         * @throws ConflictException if a file holds neither the content written by the transaction
+         *                           nor its pre-image, in which case nothing is changed
+         */
+        public void rollback() throws IOException {
+            checkUnchanged("rolled back");
+            for (Entry entry : manifest.entries) {
+                Path target = Path.of(entry.path);
+                if (entry.preImage == null) {
+                    Files.deleteIfExists(target);
+                } else {
+                    atomicWrite(target, Files.readAllBytes(dir.resolve(entry.preImage)));
+                }
+                // The restored version was analyzed before the fix; its findings must not be reused as they are
+                AnalysisCache.forFile(target).invalidate(target);
+            }
+            manifest.state = State.ROLLED_BACK;
+            saveManifest();
+        }
+
+        /**
+         * Writes the recorded post-images again.
+         *
+         * @throws ConflictException if a file holds neither its pre-image nor the content written by
+         *                           the transaction, in which case nothing is changed
+         */
+        public void replay() throws IOException {
+            checkUnchanged("replayed");
+            for (Entry entry : manifest.entries) {
+                Path postImage = dir.resolve(entry.postImage);
+                if (Files.exists(postImage)) {
+                    atomicWrite(Path.of(entry.path), Files.readAllBytes(postImage));
+                }
+            }
+            manifest.state = State.COMMITTED;
+            saveManifest();
+        }
+
+        private void abandon() throws IOException {
+            manifest.state = State.ABANDONED;
+            saveManifest();
+        }
+
+        /**
+         * Fails if a file was edited outside the journal, that is if it holds neither its pre-image
+         * nor its post-image. Either image is accepted, so that a transaction interrupted halfway
+         * can be rolled back and one rolled back halfway can be replayed.
+         */
+        private void checkUnchanged(String action) throws IOException {
+            List<Path> edited = new ArrayList<>();
+            for (Entry entry : manifest.entries) {
+                Path target = Path.of(entry.path);
+                if (!holds(target, entry.preImage) && !holds(target, entry.postImage)) {
+                    edited.add(target);
+                }
+            }
+            if (!edited.isEmpty()) {
+                throw new ConflictException("Transaction " + manifest.id + " cannot be " + action + ": "
+                    + edited + " changed since it was applied");
+            }
+        }
+
+        private boolean holds(Path target, String image) throws IOException {
+            if (image == null) {
+                return !Files.exists(target);
+            }
+            Path imageFile = dir.resolve(image);
+            return Files.exists(target) && Files.exists(imageFile) && Files.mismatch(target, imageFile) == -1;
+        }
+
+        private void saveManifest() throws IOException {
+            atomicWrite(dir.resolve(MANIFEST), JSON_MAPPER.writeValueAsBytes(manifest));
+        }
+    }
+
+    /**
+     * Thrown when a rollback or replay would overwrite edits made after the transaction.
+     */
+    public static class ConflictException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        ConflictException(String message) {
+            super(message);
+        }
+    }
+
+    /**
+     * Exclusive hold on the journal; released when closed or when the process exits.
+     */
+    public static class Lock implements AutoCloseable {
+        private final FileChannel channel;
+
+        private Lock(FileChannel channel) {
+            this.channel = channel;
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+
+    static class Manifest {
+        public String id;
+        public String description;
+        public String createdAt;
+        public State state;
+        public List<Entry> entries = new ArrayList<>();
+    }
+
+    static class Entry {
+        public String path;
+        public String preImage;
+        public String postImage;
+    }
+}
@@ -0,0 +1,36 @@
+package com.examensarbete;
+
+import com.fasterxml.jackson.databind.JsonNode;
+
+/**
+ * A prompt split into a byte-stable instruction prefix, sent as the system message so that
+ * providers can cache it across requests, and the per-request content sent as the user message.
+ * When a response schema is set, providers are asked for JSON output matching it. The user
+ * message may be a {@link NumberedSource}, which is streamed into the request body.
+ */
+public record Prompt(String system, CharSequence user, JsonNode responseSchema) {
+
+    public Prompt(String system, CharSequence user) {
+        this(system, user, null);
+    }
+
+    /**
+     * A prompt without instruction prefix.
+     */
+    public static Prompt of(String user) {
+        return new Prompt("", user);
+    }
+
+    public boolean isStructured() {
+        return responseSchema != null;
+    }
+
+    public boolean hasSystem() {
+        return system != null && !system.isEmpty();
+    }
+
+    @Override
+    public String toString() {
+        return hasSystem() ? system + "\n" + user : user.toString();
+    }
+}
@@ -1,5 +1,14 @@
 package com.examensarbete;
 
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
 /**
  * Utility class to build prompts for AI models.
  */
@@ -23,83 +32,532 @@ public class PromptBuilder {
         - Maintain existing indentation
         - Consider test failure patterns
         - Return the complete file with all fixes applied""";
+
+    /**
+     * Instructions for bug finding. Sent unchanged as the system message of every request so
+     * that providers can serve it from their prompt cache; never interpolate per-file content here.
+     */
+    static final String BUG_FINDING_INSTRUCTIONS = """
+        Analyze the following Java code and identify any bugs or issues. For each bug found, provide:
+        
+        LINE COUNTING RULES:
+        1. The code is provided with line numbers in the format "  N | code", where N is the line number starting from 1.
+        2. When reporting BUG LOCATION, use the line number shown before the pipe (|).
+        3. Each bug must be reported with its exact starting line number as shown.
+        4. Include line numbers in ORIGINAL CODE and CORRECTED CODE snippets.
+        
+        For each bug found, provide:
+        1. BUG LOCATION: <filename>:<exact line number as shown>
+        2. BUG TYPE: <type of bug>
+        3. EXPLANATION: <detailed explanation of the bug>
+        4. ORIGINAL CODE: <the problematic code snippet with line numbers>
+        5. CORRECTED CODE: <the fixed version with line numbers>
+        
+        Format your response using the following template for each bug:
+        
+        BUG LOCATION: <filename>:<exact line number>
+        BUG TYPE: <type of bug>
+        EXPLANATION: <detailed explanation>
+        
+        ORIGINAL CODE:
+        ```java
+        <original code snippet with line numbers>
+        ```
+        
+        CORRECTED CODE:
+        ```java
+        <corrected code snippet with line numbers>
+        ```
+        
+        After identifying all bugs, provide the COMPLETE FILE with all fixes applied, WITHOUT line numbers:
+        
+        COMPLETE FILE:
+        ```java
+        <entire file with all fixes applied, without line numbers>
+        ```
+        
+        IMPORTANT RULES:
+        1. Preserve ALL Javadoc comments exactly as they are
+        2. Keep the original code structure and formatting
+        3. Only modify the specific buggy code sections
+        4. Maintain all imports and package declarations
+        5. Keep all class and method signatures unchanged except for the bug fixes
+        6. NEVER use ranges or group related bugs together
+        7. IMPORTANT: Line numbers must be exactly as shown before the pipe. Do not estimate or calculate them.
+        
+        EXAMPLE:
+        If the code is:
+        ```
+         1 | public class Example {
+         2 |     public void method() {
+         3 |         System.out.println("Hello");
+         4 |     }
+         5 | }
+        ```
+        And there’s a bug at line 3, report it as:
+        BUG LOCATION: Example.java:3
+        """;
     
+    /**
+     * Instructions for bug finding in structured output mode. The answer is a single JSON object
+     * matching {@link #BUG_REPORT_SCHEMA}; like {@link #BUG_FINDING_INSTRUCTIONS} it is sent
+     * unchanged as the cacheable system message.
+     */
+    static final String STRUCTURED_BUG_FINDING_INSTRUCTIONS = """
+        Analyze the following Java code and identify any bugs or issues.
+        
+        LINE COUNTING RULES:
+        1. The code is provided with line numbers in the format "  N | code", where N is the line number starting from 1.
+        2. When reporting a bug location, use the line number shown before the pipe (|).
+        3. Each bug must be reported with its exact starting line number as shown.
+        4. Include line numbers in the original and corrected snippets.
+        
+        Answer with a single JSON object and nothing else:
+        {
+          "bugs": [
+            {
+              "location": "<filename>:<exact line number as shown>",
+              "type": "<type of bug>",
+              "explanation": "<detailed explanation of the bug>",
+              "original": "<the problematic code snippet with line numbers>",
+              "corrected": "<the fixed version with line numbers>"
+            }
+          ],
+          "completeFile": "<entire file with all fixes applied, without line numbers>"
+        }
+        Report one entry per bug. If there are no bugs, return an empty "bugs" array and the unchanged file.
+        
+        IMPORTANT RULES:
+        1. Preserve ALL Javadoc comments exactly as they are
+        2. Keep the original code structure and formatting
+        3. Only modify the specific buggy code sections
+        4. Maintain all imports and package declarations
+        5. Keep all class and method signatures unchanged except for the bug fixes
+        6. NEVER use ranges or group related bugs together
+        7. IMPORTANT: Line numbers must be exactly as shown before the pipe. Do not estimate or calculate them.
+        """;
+
+    /**
+     * Worked answers appended to the instructions in runs that send many requests with the same
+     * prefix. They only illustrate the answer format above, so the analysis is unchanged, but
+     * they lift the system prefix past the 1024 tokens that providers need before they cache it.
+     */
+    private static final String CACHE_PADDING = """
+        
+        WORKED ANSWERS:
+        The following answers show the format above applied to small files.
+        
+        For this file:
+        ```
+          1 | public class Counter {
+          2 |     private final int[] values;
+          3 | 
+          4 |     public Counter(int[] values) {
+          5 |         this.values = values;
+          6 |     }
+          7 | 
+          8 |     public int countAbove(int threshold) {
+          9 |         int count = 0;
+         10 |         for (int i = 0; i < values.length - 1; i++) {
+         11 |             if (values[i] > threshold) {
+         12 |                 count++;
+         13 |             }
+         14 |         }
+         15 |         return count;
+         16 |     }
+         17 | }
+        ```
+        the answer is:
+        
+        BUG LOCATION: Counter.java:10
+        BUG TYPE: Logical Error
+        EXPLANATION: The loop stops one element early, so the last value is never compared with the threshold.
+        
+        ORIGINAL CODE:
+        ```java
+         10 |         for (int i = 0; i < values.length - 1; i++) {
+        ```
+        
+        CORRECTED CODE:
+        ```java
+         10 |         for (int i = 0; i < values.length; i++) {
+        ```
+        
+        COMPLETE FILE:
+        ```java
+        public class Counter {
+            private final int[] values;
+        
+            public Counter(int[] values) {
+                this.values = values;
+            }
+        
+            public int countAbove(int threshold) {
+                int count = 0;
+                for (int i = 0; i < values.length; i++) {
+                    if (values[i] > threshold) {
+                        count++;
+                    }
+                }
+                return count;
+            }
+        }
+        ```
+        
+        For this file, with two bugs in neighbouring lines that are reported separately:
+        ```
+          1 | public class Account {
+          2 |     private long balance;
+          3 |     private long limit;
+          4 | 
+          5 |     public Account(long balance, long limit) {
+          6 |         this.balance = balance;
+          7 |         this.limit = balance;
+          8 |     }
+          9 | 
+         10 |     public boolean canWithdraw(long amount) {
+         11 |         return balance - amount > -limit;
+         12 |     }
+         13 | }
+        ```
+        the answer is:
+        
+        BUG LOCATION: Account.java:7
+        BUG TYPE: Field Mismatch
+        EXPLANATION: The constructor stores the balance in the limit field, so the limit parameter is ignored.
+        
+        ORIGINAL CODE:
+        ```java
+          7 |         this.limit = balance;
+        ```
+        
+        CORRECTED CODE:
+        ```java
+          7 |         this.limit = limit;
+        ```
+        
+        BUG LOCATION: Account.java:11
+        BUG TYPE: Logical Error
+        EXPLANATION: A withdrawal that ends exactly at the limit is refused because the comparison is strict.
+        
+        ORIGINAL CODE:
+        ```java
+         11 |         return balance - amount > -limit;
+        ```
+        
+        CORRECTED CODE:
+        ```java
+         11 |         return balance - amount >= -limit;
+        ```
+        
+        COMPLETE FILE:
+        ```java
+        public class Account {
+            private long balance;
+            private long limit;
+        
+            public Account(long balance, long limit) {
+                this.balance = balance;
+                this.limit = limit;
+            }
+        
+            public boolean canWithdraw(long amount) {
+                return balance - amount >= -limit;
+            }
+        }
+        ```
+        """;
+
+    /**
+     * The worked answers of {@link #CACHE_PADDING} in the JSON format.
+     */
+    private static final String STRUCTURED_CACHE_PADDING = """
+        
+        WORKED ANSWERS:
+        The following answers show the format above applied to small files.
+        
+        For this file:
+        ```
+          1 | public class Counter {
+          2 |     private final int[] values;
+          3 | 
+          4 |     public Counter(int[] values) {
+          5 |         this.values = values;
+          6 |     }
+          7 | 
+          8 |     public int countAbove(int threshold) {
+          9 |         int count = 0;
+         10 |         for (int i = 0; i < values.length - 1; i++) {
+         11 |             if (values[i] > threshold) {
+         12 |                 count++;
+         13 |             }
+         14 |         }
+         15 |         return count;
+         16 |     }
+         17 | }
+        ```
+        the answer is:
+        {
+          "bugs": [
+            {
+              "location": "Counter.java:10",
+              "type": "Logical Error",
+              "explanation": "The loop stops one element early, so the last value is never compared with the threshold.",
+              "original": " 10 |         for (int i = 0; i < values.length - 1; i++) {",
+              "corrected": " 10 |         for (int i = 0; i < values.length; i++) {"
+            }
+          ],
+          "completeFile": "public class Counter {\\n    private final int[] values;\\n\\n    public Counter(int[] values) {\\n        this.values = values;\\n    }\\n\\n    public int countAbove(int threshold) {\\n        int count = 0;\\n        for (int i = 0; i < values.length; i++) {\\n            if (values[i] > threshold) {\\n                count++;\\n            }\\n        }\\n        return count;\\n    }\\n}\\n"
+        }
+        
+        For this file, with two bugs in neighbouring lines that are reported separately:
+        ```
+          1 | public class Account {
+          2 |     private long balance;
+          3 |     private long limit;
+          4 | 
+          5 |     public Account(long balance, long limit) {
+          6 |         this.balance = balance;
+          7 |         this.limit = balance;
+          8 |     }
+          9 | 
+         10 |     public boolean canWithdraw(long amount) {
+         11 |         return balance - amount > -limit;
+         12 |     }
+         13 | }
+        ```
+        the answer is:
+        {
+          "bugs": [
+            {
+              "location": "Account.java:7",
+              "type": "Field Mismatch",
+              "explanation": "The constructor stores the balance in the limit field, so the limit parameter is ignored.",
+              "original": "  7 |         this.limit = balance;",
+              "corrected": "  7 |         this.limit = limit;"
+            },
+            {
+              "location": "Account.java:11",
+              "type": "Logical Error",
+              "explanation": "A withdrawal that ends exactly at the limit is refused because the comparison is strict.",
+              "original": " 11 |         return balance - amount > -limit;",
+              "corrected": " 11 |         return balance - amount >= -limit;"
+            }
+          ],
+          "completeFile": "public class Account {\\n    private long balance;\\n    private long limit;\\n\\n    public Account(long balance, long limit) {\\n        this.balance = balance;\\n        this.limit = limit;\\n    }\\n\\n    public boolean canWithdraw(long amount) {\\n        return balance - amount >= -limit;\\n    }\\n}\\n"
+        }
+        
+        For this file, which has no bugs:
+        ```
+          1 | public class Greeting {
+          2 |     public String greet(String name) {
+          3 |         return "Hello, " + name + "!";
+          4 |     }
+          5 | }
+        ```
+        the answer is:
+        {
+          "bugs": [],
+          "completeFile": "public class Greeting {\\n    public String greet(String name) {\\n        return \\"Hello, \\" + name + \\"!\\";\\n    }\\n}\\n"
+        }
+        """;
+
+    private static final String REPAIR_INSTRUCTION =
+        "\nReturn the corrected JSON object only. Keep every valid part of the previous answer unchanged.\n";
+
+    private static final String MULTI_FILE_TEXT_ANSWER = """
+        Instead of a single COMPLETE FILE, provide one COMPLETE FILE block for each file you changed, with its path:
+        
+        COMPLETE FILE: <path as shown>
+        ```java
+        <entire file with all fixes applied, without line numbers>
+        ```
+        
+        Do not repeat files without changes.""";
+
+    private static final String MULTI_FILE_JSON_ANSWER = """
+        Instead of "completeFile", list every file you changed in "files" as
+        {"file": "<path as shown>", "completeFile": "<entire file with all fixes applied, without line numbers>"}.
+        Leave out files without changes.""";
+
+    /**
+     * JSON schema of the structured bug report, loaded from {@code bug-report.schema.json}.
+     */
+    static final JsonNode BUG_REPORT_SCHEMA = loadSchema("/bug-report.schema.json");
+
+    /**
+     * JSON schema of the structured bug report for a prompt showing several files, loaded from
+     * {@code multi-file-bug-report.schema.json}: the complete files are listed per changed file.
+     */
+    static final JsonNode MULTI_FILE_BUG_REPORT_SCHEMA = loadSchema("/multi-file-bug-report.schema.json");
+
+    private boolean cachePadding;
+
+    /**
+     * Appends worked answers to the instructions so that the system prefix is long enough to be
+     * cached. Only worth it when a run sends many requests; the prefix stays byte-identical
+     * across them either way.
+     */
+    public void setCachePadding(boolean cachePadding) {
+        this.cachePadding = cachePadding;
+    }
+
+    private String instructions(boolean structured) {
+        if (structured) {
+            return cachePadding ? STRUCTURED_BUG_FINDING_INSTRUCTIONS + STRUCTURED_CACHE_PADDING : STRUCTURED_BUG_FINDING_INSTRUCTIONS;
+        }
+        return cachePadding ? BUG_FINDING_INSTRUCTIONS + CACHE_PADDING : BUG_FINDING_INSTRUCTIONS;
+    }
+
     /**
      * Builds a general bug finding prompt with embedded line numbers.
      */
-    public String buildBugFindingPrompt(String code) {
-        // Split the code into lines and add line numbers
-        String[] lines = code.split("\n");
-        StringBuilder numberedCode = new StringBuilder();
-        for (int i = 0; i < lines.length; i++) {
-            numberedCode.append(String.format("%3d | %s\n", i + 1, lines[i]));
+    public Prompt buildBugFindingPrompt(String code) {
+        return buildBugFindingPrompt(code, "");
+    }
+
+    /**
+     * Builds a bug finding prompt with signature-only stubs of related project types,
+     * as produced by {@link SymbolIndex#contextFor}. The instructions form the cacheable
+     * system prefix; the related types and the numbered code form the user message.
+     */
+    public Prompt buildBugFindingPrompt(String code, String relatedTypes) {
+        return new Prompt(instructions(false), codeSection(code, relatedTypes));
+    }
+
+    /**
+     * Builds a bug finding prompt that asks the provider for a JSON answer matching
+     * {@link #BUG_REPORT_SCHEMA} instead of the free-text template.
+     */
+    public Prompt buildStructuredBugFindingPrompt(String code, String relatedTypes) {
+        return new Prompt(instructions(true), codeSection(code, relatedTypes), BUG_REPORT_SCHEMA);
+    }
+
+    /**
+     * Builds a repair request for a structured answer that failed validation. Only the invalid
+     * JSON and the list of problems are sent, plus the code if the complete file is missing,
+     * so the repair costs a fraction of a full re-analysis.
+     */
+    public Prompt buildRepairPrompt(String system, String invalidJson, List<String> problems, String code) {
+        String header = repairHeader(invalidJson, problems);
+        if (code != null) {
+            return new Prompt(system, codeSection(header + '\n', code, REPAIR_INSTRUCTION), BUG_REPORT_SCHEMA);
         }
+        return new Prompt(system, header + REPAIR_INSTRUCTION, BUG_REPORT_SCHEMA);
+    }
 
-        return """
-            Analyze the following Java code and identify any bugs or issues. For each bug found, provide:
-            
-            LINE COUNTING RULES:
-            1. The code is provided with line numbers in the format "  N | code", where N is the line number starting from 1.
-            2. When reporting BUG LOCATION, use the line number shown before the pipe (|).
-            3. Each bug must be reported with its exact starting line number as shown.
-            4. Include line numbers in ORIGINAL CODE and CORRECTED CODE snippets.
-            
-            For each bug found, provide:
-            1. BUG LOCATION: <filename>:<exact line number as shown>
-            2. BUG TYPE: <type of bug>
-            3. EXPLANATION: <detailed explanation of the bug>
-            4. ORIGINAL CODE: <the problematic code snippet with line numbers>
-            5. CORRECTED CODE: <the fixed version with line numbers>
-            
-            Format your response using the following template for each bug:
-            
-            BUG LOCATION: <filename>:<exact line number>
-            BUG TYPE: <type of bug>
-            EXPLANATION: <detailed explanation>
-            
-            ORIGINAL CODE:
-            ```java
-            <original code snippet with line numbers>
-            ```
-            
-            CORRECTED CODE:
-            ```java
-            <corrected code snippet with line numbers>
-            ```
-            
-            After identifying all bugs, provide the COMPLETE FILE with all fixes applied, WITHOUT line numbers:
-            
-            COMPLETE FILE:
-            ```java
-            <entire file with all fixes applied, without line numbers>
-            ```
-            
-            IMPORTANT RULES:
-            1. Preserve ALL Javadoc comments exactly as they are
-            2. Keep the original code structure and formatting
-            3. Only modify the specific buggy code sections
-            4. Maintain all imports and package declarations
-            5. Keep all class and method signatures unchanged except for the bug fixes
-            6. NEVER use ranges or group related bugs together
-            7. IMPORTANT: Line numbers must be exactly as shown before the pipe. Do not estimate or calculate them.
+    /**
+     * Builds a repair request for a structured answer to a prompt showing several files. If
+     * complete files are missing, the files are shown again as in the original prompt.
+     */
+    public Prompt buildMultiFileRepairPrompt(Prompt original, String invalidJson, List<String> problems, boolean showFiles) {
+        String header = repairHeader(invalidJson, problems);
+        if (showFiles) {
+            return new Prompt(original.system(),
+                NumberedSource.concat(List.of(header + "\nThe files were:\n\n", original.user(), REPAIR_INSTRUCTION)),
+                MULTI_FILE_BUG_REPORT_SCHEMA);
+        }
+        return new Prompt(original.system(), header + REPAIR_INSTRUCTION, MULTI_FILE_BUG_REPORT_SCHEMA);
+    }
+
+    private static String repairHeader(String invalidJson, List<String> problems) {
+        StringBuilder user = new StringBuilder("Your previous answer did not match the required JSON schema.\n\nPROBLEMS:\n");
+        for (String problem : problems) {
+            user.append("- ").append(problem).append('\n');
+        }
+        user.append("\nPREVIOUS ANSWER:\n").append(invalidJson).append('\n');
+        return user.toString();
+    }
+
+    /**
+     * Builds a bug finding prompt showing several related files at once, so that bugs spanning
+     * classes, such as a member used under the wrong name in a caller or a mismatched override,
+     * are found and fixed in one request. Each file is numbered from line 1 and named by its
+     * path; the answer carries one complete file per changed file. The system prefix is the
+     * same as for a single file so it is still served from the prompt cache.
+     *
+     * @param files      Current content of the files, keyed by the path shown to the model
+     * @param structured Whether to request a JSON answer
+     */
+    public Prompt buildMultiFileBugFindingPrompt(Map<String, String> files, String relatedTypes, boolean structured) {
+        List<CharSequence> parts = new ArrayList<>();
+        parts.add(relatedTypesSection(relatedTypes) + """
+            The code below consists of %d related files that are analyzed together, since a bug may span several of
+            them (for example a field or method used under the wrong name in a caller, or an override that does not
+            match). Line numbers start at 1 in each file. Report the bug location with the path shown after "File:".
+            %s
             
-            EXAMPLE:
-            If the code is:
-            ```
-             1 | public class Example {
-             2 |     public void method() {
-             3 |         System.out.println("Hello");
-             4 |     }
-             5 | }
-            ```
-            And there’s a bug at line 3, report it as:
-            BUG LOCATION: Example.java:3
+            """.formatted(files.size(), structured ? MULTI_FILE_JSON_ANSWER : MULTI_FILE_TEXT_ANSWER));
+        for (Map.Entry<String, String> file : files.entrySet()) {
+            parts.add(new NumberedSource("File: " + file.getKey() + "\n```\n", file.getValue(), "\n```\n\n"));
+        }
+        NumberedSource user = NumberedSource.concat(parts);
+        return structured
+            ? new Prompt(instructions(true), user, MULTI_FILE_BUG_REPORT_SCHEMA)
+            : new Prompt(instructions(false), user);
+    }
+
+    /**
+     * Builds a re-analysis prompt for a file of which only the changed methods are shown in full,
+     * as rendered by {@link IncrementalAnalysis}. The system prefix is the same as for a full
+     * analysis so it is still served from the prompt cache.
+     *
+     * @param partialCode Numbered code with the bodies of unchanged methods elided
+     * @param structured  Whether to request a JSON answer
+     */
+    public Prompt buildIncrementalBugFindingPrompt(String partialCode, String relatedTypes, boolean structured) {
+        String user = """
+            %sOnly the methods changed since the last analysis are shown in full; the bodies of unchanged methods are
+            elided as "...". Report bugs only in the code shown in full and copy the original snippets exactly from the
+            numbered lines. %s
             
             Code to analyze:
             ```
+            %s```
+            """.formatted(relatedTypesSection(relatedTypes),
+                structured
+                    ? "Set \"completeFile\" to an empty string."
+                    : "Do not provide the COMPLETE FILE. If there are no bugs in the code shown, answer NO BUGS FOUND.",
+                partialCode);
+        return structured
+            ? new Prompt(instructions(true), user, BUG_REPORT_SCHEMA)
+            : new Prompt(instructions(false), user);
+    }
+
+    private static NumberedSource codeSection(String code, String relatedTypes) {
+        return codeSection(relatedTypesSection(relatedTypes), code, "");
+    }
+
+    /**
+     * The code with line numbers added, between the given texts. The numbered lines are
+     * produced while the request is written, see {@link NumberedSource}.
+     */
+    private static NumberedSource codeSection(String before, String code, String after) {
+        return new NumberedSource(before + "Code to analyze:\n```\n", code, "\n```\n" + after);
+    }
+
+    private static JsonNode loadSchema(String resource) {
+        try (InputStream in = PromptBuilder.class.getResourceAsStream(resource)) {
+            if (in == null) {
+                throw new IllegalStateException("Missing resource " + resource);
+            }
+            return new ObjectMapper().readTree(in);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static String relatedTypesSection(String relatedTypes) {
+        if (relatedTypes == null || relatedTypes.isBlank()) {
+            return "";
+        }
+        return """
+            RELATED TYPES (signatures of project types used by the code, for reference only - do not report bugs in them):
+            ```java
             %s
             ```
-            """.formatted(numberedCode.toString());
+            
+            """.formatted(relatedTypes);
     }
 
     /**
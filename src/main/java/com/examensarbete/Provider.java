@@ -0,0 +1,73 @@
+package com.examensarbete;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import java.net.http.HttpRequest;
+
+/**
+ * Service provider interface for AI model backends.
+ * Implementations are discovered through {@link java.util.ServiceLoader} and
+ * listed in {@code META-INF/services/com.examensarbete.Provider}.
+ */
+public interface Provider {
+
+    /**
+     * Name used to select the provider with {@code -m}, matched case-insensitively.
+     * Also used as prefix for configuration keys, e.g. {@code OPENAI_BASE_URL}.
+     */
+    String name();
+
+    /**
+     * Base URL used when no {@code <NAME>_BASE_URL} is configured.
+     */
+    String defaultBaseUrl();
+
+    /**
+     * Model id used when no {@code <NAME>_MODEL} is configured.
+     */
+    String defaultModel();
+
+    /**
+     * Path appended to the base URL to reach the completion endpoint.
+     */
+    String endpointPath();
+
+    /**
+     * Whether requests must carry an API key.
+     */
+    default boolean requiresApiKey() {
+        return true;
+    }
+
+    /**
+     * Adds authentication and any provider specific headers to the request.
+     */
+    void authorize(HttpRequest.Builder builder, String apiKey);
+
+    /**
+     * Builds the request object that is serialized as the JSON request body.
+     * The system part of the prompt must be encoded so that it forms a byte-stable
+     * prefix of the request, marked for caching where the provider supports it.
+     */
+    Object buildRequest(Prompt prompt, ProviderConfig config);
+
+    /**
+     * Extracts the generated text from a decoded response body.
+     *
+     * @return the text, or null if the response is not in this provider's format
+     */
+    String decodeContent(JsonNode root);
+
+    /**
+     * Extracts the token usage, including prompt cache reads and writes, from a decoded response body.
+     *
+     * @return the usage, or null if the response is not in this provider's format
+     */
+    TokenUsage decodeUsage(JsonNode root);
+
+    /**
+     * Request size limits of the default model.
+     */
+    Limits limits();
+
+    record Limits(int maxOutputTokens, int contextWindowTokens) {}
+}
@@ -0,0 +1,83 @@
+package com.examensarbete;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.util.Properties;
+
+/**
+ * Resolved settings for one provider.
+ * Each value is looked up as {@code <NAME>_<KEY>} in system properties, then in
+ * {@code api-keys.properties}, then in environment variables, and finally falls
+ * back to the provider default.
+ */
+public class ProviderConfig {
+    private static final Properties API_KEYS = loadApiKeys();
+
+    private final Provider provider;
+    private final String apiKey;
+    private final String baseUrl;
+    private final String model;
+    private final int maxTokens;
+
+    private ProviderConfig(Provider provider, String apiKey, String baseUrl, String model, int maxTokens) {
+        this.provider = provider;
+        this.apiKey = apiKey;
+        this.baseUrl = baseUrl;
+        this.model = model;
+        this.maxTokens = maxTokens;
+    }
+
+    public static ProviderConfig forProvider(Provider provider) {
+        String prefix = provider.name().toUpperCase();
+        String apiKey = lookup(prefix + "_API_KEY");
+        if (provider.requiresApiKey() && (apiKey == null || apiKey.isBlank())) {
+            throw new RuntimeException("Missing API key for " + provider.name());
+        }
+
+        String baseUrl = lookup(prefix + "_BASE_URL");
+        String model = lookup(prefix + "_MODEL");
+        String maxTokens = lookup(prefix + "_MAX_TOKENS");
+
+        return new ProviderConfig(
+            provider,
+            apiKey,
+            baseUrl != null && !baseUrl.isBlank() ? baseUrl : provider.defaultBaseUrl(),
+            model != null && !model.isBlank() ? model : provider.defaultModel(),
+            maxTokens != null && !maxTokens.isBlank()
+                ? Integer.parseInt(maxTokens.trim())
+                : provider.limits().maxOutputTokens()
+        );
+    }
+
+    public Provider getProvider() { return provider; }
+    public String getApiKey() { return apiKey; }
+    public String getBaseUrl() { return baseUrl; }
+    public String getModel() { return model; }
+    public int getMaxTokens() { return maxTokens; }
+
+    public URI getEndpoint() {
+        String base = baseUrl.endsWith("/") ? baseUrl.substring(0, baseUrl.length() - 1) : baseUrl;
+        return URI.create(base + provider.endpointPath());
+    }
+
+    private static String lookup(String key) {
+        String value = System.getProperty(key);
+        if (value == null) {
+            value = API_KEYS.getProperty(key, System.getenv(key));
+        }
+        return value;
+    }
+
+    private static Properties loadApiKeys() {
+        Properties properties = new Properties();
+        try (InputStream in = ProviderConfig.class.getClassLoader().getResourceAsStream("api-keys.properties")) {
+            if (in != null) {
+                properties.load(in);
+            }
+        } catch (IOException e) {
+            // Silent fail - will try environment variables
+        }
+        return properties;
+    }
+}
@@ -0,0 +1,39 @@
+package com.examensarbete;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.ServiceLoader;
+
+/**
+ * Registry of the providers available on the class path.
+ */
+public class Providers {
+    private static final List<Provider> PROVIDERS = loadProviders();
+
+    private static List<Provider> loadProviders() {
+        List<Provider> providers = new ArrayList<>();
+        for (Provider provider : ServiceLoader.load(Provider.class, Providers.class.getClassLoader())) {
+            providers.add(provider);
+        }
+        return Collections.unmodifiableList(providers);
+    }
+
+    public static List<Provider> all() {
+        return PROVIDERS;
+    }
+
+    /**
+     * Looks up a provider by name, ignoring case.
+     *
+     * @throws IllegalArgumentException if no provider with that name is registered
+     */
+    public static Provider get(String name) {
+        for (Provider provider : PROVIDERS) {
+            if (provider.name().equalsIgnoreCase(name)) {
+                return provider;
+            }
+        }
+        throw new IllegalArgumentException("Unsupported model: " + name);
+    }
+}
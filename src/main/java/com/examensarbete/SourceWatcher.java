@@ -0,0 +1,213 @@
+package com.examensarbete;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
+import java.util.stream.Stream;
+
+/**
+ * Watches the source tree of a project and analyzes Java files as they are saved. Events are
+ * debounced per file: a file is only dispatched once it has been quiet for the debounce
+ * interval, so a burst of saves results in a single analysis of the last version. A save to a
+ * file whose analysis is in flight cancels that analysis through its {@link Deadline}; the new
+ * version is dispatched once the cancelled one has finished.
+ */
+public class SourceWatcher implements Closeable {
+    private static final long IDLE_POLL_MILLIS = 1000;
+
+    /**
+     * Analysis of one changed file, run under the deadline current on the calling thread.
+     */
+    public interface ChangeHandler {
+        void analyze(Path file) throws Exception;
+    }
+
+    private final Path root;
+    private final Predicate<Path> filter;
+    private final long debounceMillis;
+    private final WatchService watchService;
+    private final Map<WatchKey, Path> watchedDirs = new HashMap<>();
+    // Changed files waiting for the debounce interval, with the time of their last event
+    private final Map<Path, Long> pending = new LinkedHashMap<>();
+    private final Map<Path, Deadline> inFlight = new HashMap<>();
+
+    /**
+     * @param root           Directory watched recursively; build output and tool directories are left out
+     * @param filter         Files whose changes are analyzed
+     * @param debounceMillis Quiet time after the last change to a file before it is analyzed
+     */
+    public SourceWatcher(Path root, Predicate<Path> filter, long debounceMillis) throws IOException {
+        this.root = root.toAbsolutePath().normalize();
+        this.filter = filter;
+        this.debounceMillis = Math.max(0, debounceMillis);
+        this.watchService = FileSystems.getDefault().newWatchService();
+        registerTree(this.root, false);
+    }
+
+    /**
+     * Watches until the run deadline is cancelled, analyzing each changed file under a child
+     * deadline with the given per-file timeout.
+     *
+     * @param concurrency Maximum number of files analyzed at the same time
+     * @param fileTimeout Time allowed per analysis, or null for no limit
+     */
+    public void run(Deadline runDeadline, int concurrency, Duration fileTimeout, ChangeHandler handler)
+            throws InterruptedException {
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, concurrency));
+        try {
+            while (!runDeadline.isCancelled()) {
+                WatchKey key;
+                try {
+                    key = watchService.poll(pollMillis(), TimeUnit.MILLISECONDS);
+                } catch (ClosedWatchServiceException e) {
+                    break;
+                }
+                if (key != null) {
+                    processEvents(key);
+                }
+                dispatchDue(runDeadline, fileTimeout, handler, executor);
+            }
+        } finally {
+            synchronized (this) {
+                inFlight.values().forEach(deadline -> deadline.cancel("watch stopped"));
+            }
+            executor.shutdown();
+            executor.awaitTermination(Long.MAX_VALUE, TimeUnit.DAYS);
+        }
+    }
+
+    private synchronized long pollMillis() {
+        long now = System.currentTimeMillis();
+        long wait = IDLE_POLL_MILLIS;
+        for (Map.Entry<Path, Long> entry : pending.entrySet()) {
+            // Files waiting for a cancelled analysis to finish are picked up on the next idle poll
+            if (!inFlight.containsKey(entry.getKey())) {
+                wait = Math.min(wait, entry.getValue() + debounceMillis - now);
+            }
+        }
+        return Math.max(1, wait);
+    }
+
+    private void processEvents(WatchKey key) {
+        Path dir = watchedDirs.get(key);
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                System.out.println("⚠️ För många ändringar på en gång - vissa kan ha missats. Spara filen igen för att analysera den.");
+                continue;
+            }
+            if (dir == null) {
+                continue;
+            }
+            Path path = dir.resolve((Path) event.context());
+            if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE && Files.isDirectory(path)) {
+                registerTree(path, true);
+                continue;
+            }
+            if (event.kind() == StandardWatchEventKinds.ENTRY_DELETE) {
+                synchronized (this) {
+                    pending.remove(path);
+                }
+            } else if (filter.test(path)) {
+                changed(path);
+            }
+        }
+        if (!key.reset()) {
+            watchedDirs.remove(key);
+        }
+    }
+
+    /**
+     * Records a change: restarts the file's debounce interval and cancels its in-flight analysis,
+     * whose result would describe an outdated version.
+     */
+    private synchronized void changed(Path path) {
+        pending.remove(path);
+        pending.put(path, System.currentTimeMillis());
+        Deadline running = inFlight.get(path);
+        if (running != null) {
+            running.cancel("superseded by a newer save");
+        }
+    }
+
+    private synchronized void dispatchDue(Deadline runDeadline, Duration fileTimeout, ChangeHandler handler,
+                                          ExecutorService executor) {
+        long now = System.currentTimeMillis();
+        Iterator<Map.Entry<Path, Long>> entries = pending.entrySet().iterator();
+        while (entries.hasNext()) {
+            Map.Entry<Path, Long> entry = entries.next();
+            Path path = entry.getKey();
+            if (now - entry.getValue() < debounceMillis || inFlight.containsKey(path)) {
+                continue;
+            }
+            entries.remove();
+            Deadline deadline = runDeadline.child(fileTimeout);
+            inFlight.put(path, deadline);
+            executor.execute(() -> analyze(path, deadline, handler));
+        }
+    }
+
+    private void analyze(Path path, Deadline deadline, ChangeHandler handler) {
+        Deadline.setCurrent(deadline);
+        UsageLedger.setCurrentFile(path);
+        try {
+            handler.analyze(path);
+        } catch (CancellationException e) {
+            System.out.println("⏭️ " + root.relativize(path) + ": " + e.getMessage());
+        } catch (Exception e) {
+            System.err.println("[ERROR] " + path + ": " + e.getMessage());
+        } finally {
+            UsageLedger.setCurrentFile(null);
+            Deadline.setCurrent(null);
+            deadline.close();
+            synchronized (this) {
+                inFlight.remove(path);
+            }
+        }
+    }
+
+    /**
+     * Registers the directory and its subdirectories. For a directory created while watching,
+     * the files already in it are treated as changed, since their events predate the registration.
+     */
+    private void registerTree(Path dir, boolean created) {
+        try (Stream<Path> dirs = Files.walk(dir)) {
+            for (Path subdir : (Iterable<Path>) dirs.filter(Files::isDirectory)::iterator) {
+                if (SymbolIndex.isSkipped(root.relativize(subdir))) {
+                    continue;
+                }
+                WatchKey key = subdir.register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+                    StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE);
+                watchedDirs.put(key, subdir);
+                if (created) {
+                    try (Stream<Path> files = Files.list(subdir)) {
+                        files.filter(Files::isRegularFile).filter(filter).forEach(this::changed);
+                    }
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("⚠️ Could not watch " + dir + ": " + e.getMessage());
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        watchService.close();
+    }
+}
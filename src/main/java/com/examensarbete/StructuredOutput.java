@@ -0,0 +1,195 @@
+package com.examensarbete;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.BiFunction;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Bug finding in structured output mode: the provider is asked for a JSON answer matching
+ * {@link PromptBuilder#BUG_REPORT_SCHEMA}, which is decoded with Jackson instead of the
+ * free-text regexes. An answer that fails validation is fixed by a single repair request
+ * carrying only the invalid JSON and the problems found, rather than by a full re-analysis.
+ */
+public class StructuredOutput {
+    private static final ObjectMapper JSON_MAPPER = new ObjectMapper();
+    private static final Pattern JSON_FENCE_PATTERN = Pattern.compile("^```(?:json)?\\s*([\\s\\S]*?)\\s*```$");
+    private static final String[] BUG_FIELDS = {"location", "type", "explanation", "original", "corrected"};
+
+    /**
+     * Finds bugs in the code using a structured prompt, repairing an invalid answer once.
+     *
+     * @return the decoded response, or null if no valid answer could be obtained
+     */
+    public static AIClient.AIResponse findBugs(String model, PromptBuilder promptBuilder, String code,
+            String relatedTypes, boolean verbose) throws Exception {
+        return findBugs(model, promptBuilder, promptBuilder.buildStructuredBugFindingPrompt(code, relatedTypes),
+            code, true, verbose);
+    }
+
+    /**
+     * Sends a structured prompt, repairing an invalid answer once.
+     *
+     * @param requireCompleteFile Whether the answer must contain the complete file; false for
+     *                            prompts that only show part of it
+     * @return the decoded response, or null if no valid answer could be obtained
+     */
+    public static AIClient.AIResponse findBugs(String model, PromptBuilder promptBuilder, Prompt prompt, String code,
+            boolean requireCompleteFile, boolean verbose) throws Exception {
+        return findBugs(model, prompt, requireCompleteFile, false, verbose, (content, result) -> {
+            boolean missingFile = requireCompleteFile
+                && (result.response() == null || result.response().getCompleteFile() == null);
+            return promptBuilder.buildRepairPrompt(prompt.system(), content, result.problems(), missingFile ? code : null);
+        });
+    }
+
+    /**
+     * Finds bugs in several files with one structured prompt, repairing an invalid answer once.
+     * The answer lists the complete content of each changed file.
+     *
+     * @param files Content of the files, keyed by the path shown to the model
+     * @return the decoded response, or null if no valid answer could be obtained
+     */
+    public static AIClient.AIResponse findBugsInFiles(String model, PromptBuilder promptBuilder, Map<String, String> files,
+            String relatedTypes, boolean verbose) throws Exception {
+        Prompt prompt = promptBuilder.buildMultiFileBugFindingPrompt(files, relatedTypes, true);
+        return findBugs(model, prompt, true, true, verbose, (content, result) -> {
+            boolean missingFiles = result.response() == null || result.response().getCompleteFiles().isEmpty();
+            return promptBuilder.buildMultiFileRepairPrompt(prompt, content, result.problems(), missingFiles);
+        });
+    }
+
+    private static AIClient.AIResponse findBugs(String model, Prompt prompt, boolean requireCompleteFile,
+            boolean multiFile, boolean verbose, BiFunction<String, Result, Prompt> repairPrompt) throws Exception {
+        String content = request(model, prompt, verbose);
+        Result result = decode(content, requireCompleteFile, multiFile);
+        if (result.problems().isEmpty()) {
+            return result.response();
+        }
+
+        System.out.println("🔧 Svaret följde inte JSON-schemat (" + result.problems().size()
+            + " problem) - skickar en riktad reparationsförfrågan...");
+        if (verbose) {
+            result.problems().forEach(problem -> System.out.println("[DEBUG] Schema problem: " + problem));
+        }
+        Result repaired = decode(request(model, repairPrompt.apply(content, result), verbose), requireCompleteFile, multiFile);
+        if (repaired.problems().isEmpty()) {
+            return repaired.response();
+        }
+
+        // Keep whatever validated in either answer rather than discarding the round trips
+        AIClient.AIResponse partial = repaired.response() != null ? repaired.response() : result.response();
+        System.err.println("[ERROR] Structured answer still invalid after repair: " + String.join("; ", repaired.problems()));
+        if (partial == null || (requireCompleteFile && partial.getCompleteFile() == null)) {
+            return null;
+        }
+        return partial;
+    }
+
+    private static String request(String model, Prompt prompt, boolean verbose) throws Exception {
+        String response = AIClient.sendRequest(model, prompt, verbose);
+        AIClient.printUsage(model, response);
+        String content = AIClient.extractContentFromApiResponse(model, response, verbose);
+        return content != null ? content.trim() : "";
+    }
+
+    /**
+     * Decodes and validates a structured answer. Valid bugs are kept even if other parts of the
+     * answer are invalid; every problem found is reported so it can be sent back for repair.
+     */
+    static Result decode(String content, boolean requireCompleteFile) {
+        return decode(content, requireCompleteFile, false);
+    }
+
+    /**
+     * Decodes and validates a structured answer, with the complete files listed per file in
+     * {@code "files"} if the prompt showed several files.
+     */
+    static Result decode(String content, boolean requireCompleteFile, boolean multiFile) {
+        List<String> problems = new ArrayList<>();
+        Matcher fence = JSON_FENCE_PATTERN.matcher(content);
+        String json = fence.matches() ? fence.group(1) : content;
+
+        JsonNode root;
+        try {
+            root = JSON_MAPPER.readTree(json);
+        } catch (JsonProcessingException e) {
+            problems.add("Answer is not valid JSON: " + e.getOriginalMessage());
+            return new Result(null, problems);
+        }
+        if (root == null || !root.isObject()) {
+            problems.add("Answer must be a JSON object with the fields \"bugs\" and \"completeFile\"");
+            return new Result(null, problems);
+        }
+
+        List<AIClient.AIResponse.BugFix> bugFixes = new ArrayList<>();
+        JsonNode bugs = root.path("bugs");
+        if (!bugs.isArray()) {
+            problems.add("\"bugs\" must be an array");
+        } else {
+            for (int i = 0; i < bugs.size(); i++) {
+                JsonNode bug = bugs.get(i);
+                List<String> missing = new ArrayList<>();
+                for (String field : BUG_FIELDS) {
+                    if (!bug.path(field).isTextual() || bug.path(field).asText().isBlank()) {
+                        missing.add(field);
+                    }
+                }
+                if (!missing.isEmpty()) {
+                    problems.add("bugs[" + i + "] is missing or has empty fields: " + String.join(", ", missing));
+                    continue;
+                }
+                bugFixes.add(new AIClient.AIResponse.BugFix(
+                    bug.get("location").asText().trim(),
+                    bug.get("corrected").asText().trim(),
+                    bug.get("type").asText().trim(),
+                    bug.get("explanation").asText().trim(),
+                    bug.get("original").asText().trim()
+                ));
+            }
+        }
+
+        if (multiFile) {
+            return new Result(new AIClient.AIResponse(bugFixes, decodeFiles(root, requireCompleteFile && !bugFixes.isEmpty(), problems)),
+                problems);
+        }
+        String completeFile = null;
+        JsonNode file = root.path("completeFile");
+        if (!file.isTextual() || (requireCompleteFile && file.asText().isBlank())) {
+            problems.add("\"completeFile\" must contain the entire fixed file");
+        } else if (!file.asText().isBlank()) {
+            completeFile = file.asText().strip();
+        }
+        return new Result(new AIClient.AIResponse(bugFixes, completeFile), problems);
+    }
+
+    private static Map<String, String> decodeFiles(JsonNode root, boolean requireFiles, List<String> problems) {
+        Map<String, String> completeFiles = new LinkedHashMap<>();
+        JsonNode files = root.path("files");
+        if (!files.isArray()) {
+            problems.add("\"files\" must be an array of changed files");
+            return completeFiles;
+        }
+        for (int i = 0; i < files.size(); i++) {
+            JsonNode file = files.get(i);
+            if (!file.path("file").isTextual() || file.path("file").asText().isBlank()
+                || !file.path("completeFile").isTextual() || file.path("completeFile").asText().isBlank()) {
+                problems.add("files[" + i + "] must name the file and contain the entire fixed file");
+                continue;
+            }
+            completeFiles.put(file.get("file").asText().trim(), file.get("completeFile").asText().strip());
+        }
+        if (requireFiles && completeFiles.isEmpty()) {
+            problems.add("\"files\" must contain every file changed by the fixes");
+        }
+        return completeFiles;
+    }
+
+    record Result(AIClient.AIResponse response, List<String> problems) {}
+}
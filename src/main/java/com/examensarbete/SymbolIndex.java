@@ -0,0 +1,451 @@
+package com.examensarbete;
+
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.sun.source.tree.ClassTree;
+import com.sun.source.tree.CompilationUnitTree;
+import com.sun.source.tree.IdentifierTree;
+import com.sun.source.tree.ImportTree;
+import com.sun.source.tree.MemberSelectTree;
+import com.sun.source.tree.MethodTree;
+import com.sun.source.tree.Tree;
+import com.sun.source.tree.VariableTree;
+import com.sun.source.util.JavacTask;
+import com.sun.source.util.TreeScanner;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import javax.lang.model.element.Modifier;
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileObject;
+import javax.tools.StandardJavaFileManager;
+import javax.tools.ToolProvider;
+
+/**
+ * Persistent index of the types in a project: signatures, fields, inheritance and the
+ * identifiers each file references. Stored in {@code .assistant/symbol-index.json} under the
+ * project root and updated incrementally, re-parsing only files whose size or timestamp changed.
+ * Used to give the model signature-only stubs of exactly the types a file refers to.
+ */
+public class SymbolIndex {
+    private static final ObjectMapper JSON_MAPPER = new ObjectMapper()
+        .configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+    private static final String INDEX_FILE = ".assistant/symbol-index.json";
+    private static final Set<String> SKIPPED_DIRS = Set.of("target", "build", "out", ".git", ".gradle", ".assistant", "node_modules");
+    private static final int MAX_CONTEXT_CHARS = 12000;
+    private static final int MAX_UNFILTERED_MEMBERS = 15;
+
+    private final Path projectRoot;
+    private final IndexData data;
+    private int reparsedFiles;
+
+    private SymbolIndex(Path projectRoot, IndexData data) {
+        this.projectRoot = projectRoot;
+        this.data = data;
+    }
+
+    /**
+     * Loads the stored index for the project, or starts an empty one.
+     */
+    public static SymbolIndex load(Path projectRoot) {
+        Path indexFile = projectRoot.resolve(INDEX_FILE);
+        IndexData data = new IndexData();
+        if (Files.exists(indexFile)) {
+            try {
+                data = JSON_MAPPER.readValue(indexFile.toFile(), IndexData.class);
+            } catch (IOException e) {
+                System.err.println("⚠️ Ignoring unreadable symbol index: " + e.getMessage());
+            }
+        }
+        return new SymbolIndex(projectRoot, data);
+    }
+
+    /**
+     * Brings the index up to date with the sources on disk.
+     *
+     * @return the number of files that had to be re-parsed
+     */
+    public int update() throws IOException {
+        Map<String, Path> sources = new HashMap<>();
+        try (Stream<Path> paths = Files.walk(projectRoot)) {
+            paths.filter(p -> p.toString().endsWith(".java"))
+                .filter(p -> !isSkipped(projectRoot.relativize(p)))
+                .forEach(p -> sources.put(projectRoot.relativize(p).toString(), p));
+        }
+
+        data.files.keySet().retainAll(sources.keySet());
+
+        List<Path> changed = new ArrayList<>();
+        for (Map.Entry<String, Path> source : sources.entrySet()) {
+            FileEntry entry = data.files.get(source.getKey());
+            Path path = source.getValue();
+            if (entry == null
+                || entry.lastModified != Files.getLastModifiedTime(path).toMillis()
+                || entry.size != Files.size(path)) {
+                changed.add(path);
+            }
+        }
+
+        if (!changed.isEmpty()) {
+            parse(changed);
+        }
+        reparsedFiles = changed.size();
+        return reparsedFiles;
+    }
+
+    public void save() throws IOException {
+        Path indexFile = projectRoot.resolve(INDEX_FILE);
+        Files.createDirectories(indexFile.getParent());
+        Path temp = indexFile.resolveSibling(indexFile.getFileName() + ".tmp");
+        JSON_MAPPER.writeValue(temp.toFile(), data);
+        Files.move(temp, indexFile, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    public int size() {
+        return data.files.size();
+    }
+
+    public int getReparsedFiles() {
+        return reparsedFiles;
+    }
+
+    /**
+     * Returns the project files declaring types that the given file refers to.
+     */
+    public Set<Path> referencedFiles(Path file) {
+        FileEntry entry = data.files.get(relativeKey(file));
+        Set<Path> files = new LinkedHashSet<>();
+        if (entry == null) {
+            return files;
+        }
+        for (TypeSymbol type : referencedTypes(entry)) {
+            files.add(projectRoot.resolve(type.file));
+        }
+        return files;
+    }
+
+    /**
+     * Renders compact signature-only stubs of the project types referenced by the file,
+     * or an empty string when it references none.
+     */
+    public String contextFor(Path file) {
+        FileEntry entry = data.files.get(relativeKey(file));
+        if (entry == null) {
+            return "";
+        }
+
+        StringBuilder context = new StringBuilder();
+        for (TypeSymbol type : referencedTypes(entry)) {
+            String stub = renderStub(type, entry.identifiers);
+            if (context.length() + stub.length() > MAX_CONTEXT_CHARS) {
+                break;
+            }
+            context.append(stub).append("\n");
+        }
+        return context.toString().trim();
+    }
+
+    /**
+     * Resolves the types referenced by a file, superclasses of its own types first.
+     */
+    private List<TypeSymbol> referencedTypes(FileEntry entry) {
+        Map<String, List<TypeSymbol>> bySimpleName = new HashMap<>();
+        for (FileEntry other : data.files.values()) {
+            if (other == entry) {
+                continue;
+            }
+            for (TypeSymbol type : other.types) {
+                bySimpleName.computeIfAbsent(type.simpleName, n -> new ArrayList<>()).add(type);
+            }
+        }
+
+        Set<TypeSymbol> result = new LinkedHashSet<>();
+        Deque<String> supertypes = new ArrayDeque<>();
+        for (TypeSymbol own : entry.types) {
+            if (own.superclass != null) {
+                supertypes.add(own.superclass);
+            }
+            supertypes.addAll(own.interfaces);
+        }
+        while (!supertypes.isEmpty()) {
+            TypeSymbol type = resolve(bySimpleName, simpleName(supertypes.poll()), entry);
+            if (type != null && result.add(type)) {
+                if (type.superclass != null) {
+                    supertypes.add(type.superclass);
+                }
+                supertypes.addAll(type.interfaces);
+            }
+        }
+
+        for (String identifier : entry.identifiers) {
+            TypeSymbol type = resolve(bySimpleName, identifier, entry);
+            if (type != null) {
+                result.add(type);
+            }
+        }
+        return new ArrayList<>(result);
+    }
+
+    /**
+     * Picks the candidate in the same package or named by an import, if the simple name is ambiguous.
+     */
+    private static TypeSymbol resolve(Map<String, List<TypeSymbol>> bySimpleName, String simpleName, FileEntry from) {
+        List<TypeSymbol> candidates = bySimpleName.get(simpleName);
+        if (candidates == null || candidates.isEmpty()) {
+            return null;
+        }
+        if (candidates.size() == 1) {
+            return candidates.get(0);
+        }
+        for (TypeSymbol candidate : candidates) {
+            String packageName = packageOf(candidate.name);
+            if (packageName.equals(from.packageName)
+                || from.imports.contains(candidate.name)
+                || from.imports.contains(packageName + ".*")) {
+                return candidate;
+            }
+        }
+        return null;
+    }
+
+    private static String renderStub(TypeSymbol type, Set<String> identifiers) {
+        int memberCount = type.fields.size() + type.methods.size();
+        boolean filter = memberCount > MAX_UNFILTERED_MEMBERS;
+
+        StringBuilder stub = new StringBuilder();
+        stub.append("// ").append(type.name).append(" (").append(type.file).append(")\n");
+        stub.append(type.declaration).append(" {\n");
+        for (MemberSymbol field : type.fields) {
+            if (!filter || identifiers.contains(field.name)) {
+                stub.append("    ").append(field.signature).append(";\n");
+            }
+        }
+        for (MemberSymbol method : type.methods) {
+            if (!filter || identifiers.contains(method.name) || method.name.equals(type.simpleName)) {
+                stub.append("    ").append(method.signature).append(";\n");
+            }
+        }
+        if (filter) {
+            stub.append("    // ... other members omitted\n");
+        }
+        stub.append("}\n");
+        return stub.toString();
+    }
+
+    private void parse(List<Path> paths) throws IOException {
+        JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+        if (compiler == null) {
+            throw new IllegalStateException("No Java compiler available - run on a JDK, not a JRE");
+        }
+        try (StandardJavaFileManager fileManager = compiler.getStandardFileManager(null, null, StandardCharsets.UTF_8)) {
+            Iterable<? extends JavaFileObject> units = fileManager.getJavaFileObjectsFromPaths(paths);
+            JavacTask task = (JavacTask) compiler.getTask(null, fileManager, diagnostic -> { },
+                List.of("-proc:none"), null, units);
+            for (CompilationUnitTree unit : task.parse()) {
+                Path path = Path.of(unit.getSourceFile().toUri());
+                FileEntry entry = new FileEntry();
+                entry.lastModified = Files.getLastModifiedTime(path).toMillis();
+                entry.size = Files.size(path);
+                entry.packageName = unit.getPackageName() != null ? unit.getPackageName().toString() : "";
+                for (ImportTree importTree : unit.getImports()) {
+                    entry.imports.add(importTree.getQualifiedIdentifier().toString());
+                }
+                String relative = projectRoot.relativize(path).toString();
+                new SymbolCollector(entry, relative).scan(unit, null);
+                data.files.put(relative, entry);
+            }
+        }
+    }
+
+    private String relativeKey(Path file) {
+        return projectRoot.relativize(file.toAbsolutePath().normalize()).toString();
+    }
+
+    static boolean isSkipped(Path relative) {
+        for (Path part : relative) {
+            if (SKIPPED_DIRS.contains(part.toString())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static String simpleName(String typeName) {
+        String raw = typeName.replaceAll("<.*", "").trim();
+        return raw.substring(raw.lastIndexOf('.') + 1);
+    }
+
+    private static String packageOf(String qualifiedName) {
+        int dot = qualifiedName.lastIndexOf('.');
+        return dot < 0 ? "" : qualifiedName.substring(0, dot);
+    }
+
+    /**
+     * Collects type declarations and referenced identifiers from one compilation unit.
+     */
+    private static class SymbolCollector extends TreeScanner<Void, Void> {
+        private final FileEntry entry;
+        private final String file;
+        private final Deque<String> enclosing = new ArrayDeque<>();
+
+        SymbolCollector(FileEntry entry, String file) {
+            this.entry = entry;
+            this.file = file;
+        }
+
+        @Override
+        public Void visitClass(ClassTree tree, Void unused) {
+            String simpleName = tree.getSimpleName().toString();
+            if (simpleName.isEmpty()) {
+                return super.visitClass(tree, unused);
+            }
+
+            String prefix = enclosing.isEmpty()
+                ? (entry.packageName.isEmpty() ? "" : entry.packageName + ".")
+                : enclosing.peek() + ".";
+            TypeSymbol type = new TypeSymbol();
+            type.name = prefix + simpleName;
+            type.simpleName = simpleName;
+            type.file = file;
+            type.superclass = tree.getExtendsClause() != null ? tree.getExtendsClause().toString() : null;
+            for (Tree implemented : tree.getImplementsClause()) {
+                type.interfaces.add(implemented.toString());
+            }
+            type.declaration = declaration(tree);
+
+            for (Tree member : tree.getMembers()) {
+                if (member instanceof VariableTree variable
+                    && !variable.getModifiers().getFlags().contains(Modifier.PRIVATE)) {
+                    type.fields.add(new MemberSymbol(variable.getName().toString(),
+                        modifiers(variable.getModifiers().getFlags()) + variable.getType() + " " + variable.getName()));
+                } else if (member instanceof MethodTree method
+                    && !method.getModifiers().getFlags().contains(Modifier.PRIVATE)) {
+                    type.methods.add(methodSymbol(method, simpleName));
+                }
+            }
+            entry.types.add(type);
+
+            enclosing.push(type.name);
+            try {
+                return super.visitClass(tree, unused);
+            } finally {
+                enclosing.pop();
+            }
+        }
+
+        @Override
+        public Void visitIdentifier(IdentifierTree tree, Void unused) {
+            entry.identifiers.add(tree.getName().toString());
+            return super.visitIdentifier(tree, unused);
+        }
+
+        @Override
+        public Void visitMemberSelect(MemberSelectTree tree, Void unused) {
+            entry.identifiers.add(tree.getIdentifier().toString());
+            return super.visitMemberSelect(tree, unused);
+        }
+
+        private static String declaration(ClassTree tree) {
+            String keyword = switch (tree.getKind()) {
+                case INTERFACE -> "interface";
+                case ENUM -> "enum";
+                case ANNOTATION_TYPE -> "@interface";
+                default -> tree.getKind().name().equals("RECORD") ? "record" : "class";
+            };
+            StringBuilder declaration = new StringBuilder(modifiers(tree.getModifiers().getFlags()))
+                .append(keyword).append(" ").append(tree.getSimpleName());
+            if (!tree.getTypeParameters().isEmpty()) {
+                declaration.append(tree.getTypeParameters().stream()
+                    .map(Object::toString).collect(Collectors.joining(", ", "<", ">")));
+            }
+            if (tree.getExtendsClause() != null) {
+                declaration.append(" extends ").append(tree.getExtendsClause());
+            }
+            if (!tree.getImplementsClause().isEmpty()) {
+                declaration.append(tree.getKind() == Tree.Kind.INTERFACE ? " extends " : " implements ")
+                    .append(tree.getImplementsClause().stream().map(Object::toString).collect(Collectors.joining(", ")));
+            }
+            return declaration.toString();
+        }
+
+        private static MemberSymbol methodSymbol(MethodTree method, String className) {
+            boolean constructor = method.getName().contentEquals("<init>");
+            String name = constructor ? className : method.getName().toString();
+            StringBuilder signature = new StringBuilder(modifiers(method.getModifiers().getFlags()));
+            if (!method.getTypeParameters().isEmpty()) {
+                signature.append(method.getTypeParameters().stream()
+                    .map(Object::toString).collect(Collectors.joining(", ", "<", "> ")));
+            }
+            if (!constructor) {
+                signature.append(method.getReturnType()).append(" ");
+            }
+            signature.append(name).append(method.getParameters().stream()
+                .map(p -> p.getType() + " " + p.getName())
+                .collect(Collectors.joining(", ", "(", ")")));
+            if (!method.getThrows().isEmpty()) {
+                signature.append(" throws ").append(method.getThrows().stream()
+                    .map(Object::toString).collect(Collectors.joining(", ")));
+            }
+            return new MemberSymbol(name, signature.toString());
+        }
+
+        private static String modifiers(Set<Modifier> flags) {
+            StringBuilder modifiers = new StringBuilder();
+            for (Modifier modifier : new TreeSet<>(flags)) {
+                modifiers.append(modifier).append(" ");
+            }
+            return modifiers.toString();
+        }
+    }
+
+    static class IndexData {
+        public Map<String, FileEntry> files = new TreeMap<>();
+    }
+
+    static class FileEntry {
+        public long lastModified;
+        public long size;
+        public String packageName = "";
+        public List<String> imports = new ArrayList<>();
+        public List<TypeSymbol> types = new ArrayList<>();
+        public Set<String> identifiers = new TreeSet<>();
+    }
+
+    static class TypeSymbol {
+        public String name;
+        public String simpleName;
+        public String file;
+        public String declaration;
+        public String superclass;
+        public List<String> interfaces = new ArrayList<>();
+        public List<MemberSymbol> fields = new ArrayList<>();
+        public List<MemberSymbol> methods = new ArrayList<>();
+    }
+
+    static class MemberSymbol {
+        public String name;
+        public String signature;
+
+        public MemberSymbol() {
+        }
+
+        MemberSymbol(String name, String signature) {
+            this.name = name;
+            this.signature = signature;
+        }
+    }
+}
@@ -2,13 +2,18 @@ package com.examensarbete;
 
 import java.io.BufferedReader;
 import java.io.File;
+import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Set;
 import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
 import org.w3c.dom.Document;
@@ -21,12 +26,37 @@ public class TestRunner {
     private static int errorTests = 0;
     private static int skippedTests = 0;
     
-    private static final int TEST_TIMEOUT_MINUTES = 15;
+    static final int TEST_TIMEOUT_MINUTES = 15;
+    private static final Pattern SUREFIRE_INCLUDES = Pattern.compile("Test\\w*\\.java|\\w*(Test|Tests|TestCase)\\.java");
     
     public static boolean runTests(String projectPath, boolean verbose) throws Exception {
+        return runTests(projectPath, List.of(), verbose);
+    }
+
+    /**
+     * Runs the tests affected by the changed files. In a Maven reactor or Gradle multi-project
+     * build only the modules containing the files and the modules depending on them are built
+     * and tested, in parallel; without changed files the whole project at projectPath is tested.
+     */
+    public static boolean runTests(String projectPath, List<Path> changedFiles, boolean verbose) throws Exception {
         File projectDir = new File(projectPath);
-        BuildSystem buildSystem = determineBuildSystem(projectDir);
-        List<String> command = buildCommand(buildSystem);
+        ModuleGraph graph = ModuleGraph.discover(projectDir.toPath());
+        BuildSystem buildSystem = graph.getBuildSystem();
+
+        Set<ModuleGraph.Module> modules;
+        List<String> command;
+        if (graph.isMultiModule()) {
+            modules = graph.affectedModules(changedFiles.isEmpty() ? List.of(projectDir.toPath()) : changedFiles);
+            projectDir = graph.getRootDir().toFile();
+            command = buildModuleCommand(buildSystem, modules);
+            for (ModuleGraph.Module module : modules) {
+                deleteReports(graph.reportsDir(module));
+            }
+        } else {
+            modules = Set.of(graph.moduleFor(projectDir.toPath()));
+            command = buildCommand(buildSystem);
+        }
+        List<Path> reportDirs = modules.stream().map(graph::reportsDir).toList();
         
         ProcessBuilder pb = new ProcessBuilder(command);
         pb.directory(projectDir);
@@ -36,20 +66,34 @@ public class TestRunner {
         if (verbose) {
             System.out.println("⏳ Timeout set to: " + TEST_TIMEOUT_MINUTES + " minutes");
             System.out.println("📂 Project root: " + projectDir.getAbsolutePath());
+            if (graph.isMultiModule()) {
+                System.out.println("🧩 Affected modules: " + modules.stream().map(ModuleGraph.Module::id).toList());
+            }
+            System.out.println("[DEBUG] Command: " + String.join(" ", command));
         }
         
+        Deadline deadline = Deadline.current();
+        deadline.check();
         long startTime = System.currentTimeMillis();
         Process process = pb.start();
+        Runnable registration = deadline.onCancel(() -> destroyProcessTree(process));
         
         Thread outputThread = new Thread(() -> readStream(process.getInputStream(), verbose));
         outputThread.start();
         
-        boolean completed = process.waitFor(TEST_TIMEOUT_MINUTES, TimeUnit.MINUTES);
+        boolean completed;
+        try {
+            completed = process.waitFor(Math.min(TimeUnit.MINUTES.toMillis(TEST_TIMEOUT_MINUTES), deadline.remainingMillis()),
+                TimeUnit.MILLISECONDS);
+        } finally {
+            registration.run();
+        }
         long durationSeconds = (System.currentTimeMillis() - startTime) / 1000;
         
-        if (!completed) {
+        if (!completed || deadline.isCancelled()) {
+            destroyProcessTree(process);
+            deadline.check();
             System.err.println("\n⛔ Timeout after " + durationSeconds + " seconds!");
-            process.destroyForcibly();
             throw new RuntimeException("Test execution timed out");
         }
         
@@ -59,12 +103,9 @@ public class TestRunner {
         }
         System.out.println("\n✅ Test execution completed in " + durationSeconds + " seconds");
         
-        parseTestResults(projectPath);
+        parseTestResults(reportDirs);
         
-        boolean testsExecuted = Files.walk(Path.of(projectPath, "target", "surefire-reports"))
-            .anyMatch(p -> p.toString().endsWith(".xml"));
-        
-        if (!testsExecuted) {
+        if (totalTests == 0 && reportDirs.stream().noneMatch(TestRunner::hasReports)) {
             System.err.println("\n⛔ No test reports found. Possible compilation failure.");
             return false;
         }
@@ -73,6 +114,37 @@ public class TestRunner {
         return (failedTests + errorTests) == 0;
     }
 
+    /**
+     * Kills the process together with everything it started. Build tools fork compiler daemons
+     * and test JVMs, which would otherwise keep running after the parent is gone.
+     */
+    static void destroyProcessTree(Process process) {
+        process.descendants().forEach(ProcessHandle::destroyForcibly);
+        process.destroyForcibly();
+    }
+
+    private static boolean hasReports(Path reportsDir) {
+        if (!Files.exists(reportsDir)) {
+            return false;
+        }
+        try (Stream<Path> paths = Files.walk(reportsDir)) {
+            return paths.anyMatch(p -> p.toString().endsWith(".xml"));
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    private static void deleteReports(Path reportsDir) throws IOException {
+        if (!Files.exists(reportsDir)) {
+            return;
+        }
+        try (Stream<Path> paths = Files.walk(reportsDir)) {
+            for (Path path : paths.filter(p -> p.toString().endsWith(".xml")).toList()) {
+                Files.deleteIfExists(path);
+            }
+        }
+    }
+
     private static void readStream(InputStream inputStream, boolean verbose) {
         try (BufferedReader reader = new BufferedReader(new InputStreamReader(inputStream))) {
             String line;
@@ -92,45 +164,65 @@ public class TestRunner {
         }
     }
 
-    private static void parseTestResults(String projectPath) throws Exception {
-        Path reportsDir = Path.of(projectPath, "target", "surefire-reports");
+    private static void parseTestResults(List<Path> reportDirs) throws Exception {
         totalTests = 0;
         failedTests = 0;
         errorTests = 0;
         skippedTests = 0;
-    
-        if (!Files.exists(reportsDir)) {
+
+        for (Path reportsDir : reportDirs) {
+            if (Files.exists(reportsDir)) {
+                parseReports(reportsDir);
+            }
+        }
+        if (reportDirs.stream().noneMatch(Files::exists)) {
             System.err.println("⚠️ No test reports directory found");
-            return;
         }
+    }
+
+    private static void parseReports(Path reportsDir) throws Exception {
+        try (Stream<Path> paths = Files.walk(reportsDir)) {
+            paths.filter(path -> path.toString().endsWith(".xml"))
+                .forEach(path -> {
+                    try {
+                        DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+                        factory.setNamespaceAware(false);
+                        DocumentBuilder builder = factory.newDocumentBuilder();
+                        Document doc = builder.parse(path.toFile());
     
-        Files.walk(reportsDir)
-            .filter(path -> path.toString().endsWith(".xml"))
-            .forEach(path -> {
-                try {
-                    DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
-                    factory.setNamespaceAware(false);
-                    DocumentBuilder builder = factory.newDocumentBuilder();
-                    Document doc = builder.parse(path.toFile());
-    
-                    NodeList testCases = doc.getElementsByTagName("testcase");
-                    totalTests += testCases.getLength();
+                        NodeList testCases = doc.getElementsByTagName("testcase");
+                        totalTests += testCases.getLength();
     
-                    for (int i = 0; i < testCases.getLength(); i++) {
-                        Element testCase = (Element) testCases.item(i);
+                        for (int i = 0; i < testCases.getLength(); i++) {
+                            Element testCase = (Element) testCases.item(i);
                         
-                        if (testCase.getElementsByTagName("failure").getLength() > 0) {
-                            failedTests++;
-                        } else if (testCase.getElementsByTagName("error").getLength() > 0) {
-                            errorTests++;
-                        } else if (testCase.getElementsByTagName("skipped").getLength() > 0) {
-                            skippedTests++;
+                            if (testCase.getElementsByTagName("failure").getLength() > 0) {
+                                failedTests++;
+                            } else if (testCase.getElementsByTagName("error").getLength() > 0) {
+                                errorTests++;
+                            } else if (testCase.getElementsByTagName("skipped").getLength() > 0) {
+                                skippedTests++;
+                            }
                         }
+                    } catch (Exception e) {
+                        System.err.println("⚠️ Error parsing " + path + ": " + e.getMessage());
                     }
-                } catch (Exception e) {
-                    System.err.println("⚠️ Error parsing " + path + ": " + e.getMessage());
-                }
-            });
+                });
+        }
+    }
+
+    /**
+     * Records results gathered outside a build tool run and prints the usual summary.
+     *
+     * @return true if no test failed or errored
+     */
+    static boolean reportResults(int total, int failed, int errors, int skipped) {
+        totalTests = total;
+        failedTests = failed;
+        errorTests = errors;
+        skippedTests = skipped;
+        printTestSummary();
+        return (failedTests + errorTests) == 0;
     }
 
     private static void printTestSummary() {
@@ -166,7 +258,67 @@ public class TestRunner {
         return command;
     }
 
-    private static BuildSystem determineBuildSystem(File projectDir) {
+    /**
+     * Builds and tests only the given modules, letting the build tool run them in parallel. The
+     * upstream modules are built in the same reactor, without installing anything, but their tests
+     * are not run: Maven runs the test phase in every module of the reactor, so the tests are
+     * narrowed to the test classes of the given modules. Gradle test tasks only build the
+     * classes they depend on.
+     */
+    private static List<String> buildModuleCommand(BuildSystem buildSystem, Set<ModuleGraph.Module> modules)
+            throws IOException {
+        List<String> command = new ArrayList<>();
+        if (buildSystem == BuildSystem.MAVEN) {
+            command.add(isWindows() ? "mvn.cmd" : "mvn");
+            command.add("test");
+            command.add("-T");
+            command.add("1C");
+            command.add("-pl");
+            command.add(modules.stream().map(ModuleGraph.Module::id).collect(Collectors.joining(",")));
+            command.add("-am"); // Upstream modules must be built for the reactor to resolve them
+            List<String> testClasses = new ArrayList<>();
+            for (ModuleGraph.Module module : modules) {
+                testClasses.addAll(testClasses(module.dir()));
+            }
+            if (testClasses.isEmpty()) {
+                command.add("-DskipTests");
+            } else {
+                command.add("-Dtest=" + String.join(",", testClasses));
+                command.add("-Dsurefire.failIfNoSpecifiedTests=false");
+            }
+            command.add("-q");
+        } else if (buildSystem == BuildSystem.GRADLE) {
+            command.add(isWindows() ? "gradlew.bat" : "./gradlew");
+            for (ModuleGraph.Module module : modules) {
+                // A bare "test" would run the test task of every project in the build
+                command.add(module.id().equals(":") ? ":test" : module.id() + ":test");
+            }
+            command.add("--parallel");
+            command.add("--quiet");
+        } else {
+            throw new IllegalStateException("Unsupported build system");
+        }
+        return command;
+    }
+
+    /**
+     * Returns the fully qualified names of the module's test classes, as picked by Surefire's default includes.
+     */
+    private static List<String> testClasses(Path moduleDir) throws IOException {
+        Path testSources = moduleDir.resolve("src").resolve("test").resolve("java");
+        if (!Files.isDirectory(testSources)) {
+            return List.of();
+        }
+        try (Stream<Path> paths = Files.walk(testSources)) {
+            return paths.filter(path -> SUREFIRE_INCLUDES.matcher(path.getFileName().toString()).matches())
+                .map(path -> testSources.relativize(path).toString().replace(File.separatorChar, '.'))
+                .map(name -> name.substring(0, name.length() - ".java".length()))
+                .sorted()
+                .toList();
+        }
+    }
+
+    static BuildSystem determineBuildSystem(File projectDir) {
         if (new File(projectDir, "pom.xml").exists()) return BuildSystem.MAVEN;
         if (new File(projectDir, "build.gradle").exists() || 
             new File(projectDir, "build.gradle.kts").exists()) return BuildSystem.GRADLE;
@@ -177,7 +329,7 @@ public class TestRunner {
         return System.getProperty("os.name").toLowerCase().contains("win");
     }
 
-    private enum BuildSystem {
+    enum BuildSystem {
         MAVEN, GRADLE, UNKNOWN
     }
 }
\ No newline at end of file
@@ -0,0 +1,27 @@
+package com.examensarbete;
+
+/**
+ * Token counts reported by a provider for one request. Input tokens include cached ones.
+ */
+public record TokenUsage(long inputTokens, long outputTokens, long cacheReadTokens, long cacheWriteTokens) {
+
+    public static final TokenUsage NONE = new TokenUsage(0, 0, 0, 0);
+
+    public long totalTokens() {
+        return inputTokens + outputTokens;
+    }
+
+    public TokenUsage plus(TokenUsage other) {
+        return new TokenUsage(
+            inputTokens + other.inputTokens,
+            outputTokens + other.outputTokens,
+            cacheReadTokens + other.cacheReadTokens,
+            cacheWriteTokens + other.cacheWriteTokens);
+    }
+
+    @Override
+    public String toString() {
+        return "in " + inputTokens + " (cache read " + cacheReadTokens + ", cache write " + cacheWriteTokens
+            + "), out " + outputTokens;
+    }
+}
@@ -0,0 +1,497 @@
+package com.examensarbete;
+
+import com.sun.source.tree.AnnotationTree;
+import com.sun.source.tree.AssignmentTree;
+import com.sun.source.tree.BinaryTree;
+import com.sun.source.tree.BlockTree;
+import com.sun.source.tree.CaseTree;
+import com.sun.source.tree.CatchTree;
+import com.sun.source.tree.ClassTree;
+import com.sun.source.tree.CompilationUnitTree;
+import com.sun.source.tree.ConditionalExpressionTree;
+import com.sun.source.tree.DoWhileLoopTree;
+import com.sun.source.tree.EnhancedForLoopTree;
+import com.sun.source.tree.ExpressionStatementTree;
+import com.sun.source.tree.ExpressionTree;
+import com.sun.source.tree.ForLoopTree;
+import com.sun.source.tree.IdentifierTree;
+import com.sun.source.tree.IfTree;
+import com.sun.source.tree.LambdaExpressionTree;
+import com.sun.source.tree.LiteralTree;
+import com.sun.source.tree.MemberSelectTree;
+import com.sun.source.tree.MethodInvocationTree;
+import com.sun.source.tree.MethodTree;
+import com.sun.source.tree.NewClassTree;
+import com.sun.source.tree.ReturnTree;
+import com.sun.source.tree.StatementTree;
+import com.sun.source.tree.Tree;
+import com.sun.source.tree.TryTree;
+import com.sun.source.tree.VariableTree;
+import com.sun.source.tree.WhileLoopTree;
+import com.sun.source.util.JavacTask;
+import com.sun.source.util.TreeScanner;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.BooleanSupplier;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import javax.tools.Diagnostic;
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileObject;
+import javax.tools.StandardJavaFileManager;
+import javax.tools.ToolProvider;
+
+/**
+ * Cheap local pre-screening of the files of a batch run, so that the model is only asked about
+ * files where it can find something. The files are parsed and attributed with the JDK compiler
+ * and scored on signals tied to the bug categories of the bug-finding prompt: {@code -Xlint}
+ * warnings, resources opened outside try-with-resources, null handling, method complexity and
+ * recent git churn. Generated code and classes without any logic are skipped, files without
+ * signals are downgraded to the end of the run and files with many signals are moved to the front.
+ */
+public class Triage {
+    private static final int CHUNK_SIZE = 200;
+    private static final int HIGH_PRIORITY_SCORE = 8;
+    private static final int COMPLEXITY_THRESHOLD = 10;
+    private static final int LOW_COMPLEXITY = 3;
+    private static final int MAX_LINT_REASONS = 2;
+    private static final List<String> LINT_OPTIONS = List.of(
+        "-proc:none", "-Xlint:all,-serial,-processing,-options,-path,-classfile", "-Xmaxwarns", "10000");
+    // "Generated by" only counts when it opens a line of the notice, not in prose such as "ids generated by the database"
+    private static final Pattern GENERATED_HEADER = Pattern.compile(
+        "(?im)(@generated|auto-?generated|do not edit|^\\W*(this (file|class|code|source) (is|was) )?generated (by|from|with|using)\\b)");
+    // Comments before the first token of the file, where code generators put their notice
+    private static final Pattern LEADING_COMMENTS = Pattern.compile("\\A(?:\\s*(?://[^\\n]*|/\\*[\\s\\S]*?\\*/))*");
+    private static final Pattern RESOURCE_TYPE = Pattern.compile(
+        "\\w*(Stream|Reader|Writer|Socket|Connection|Channel|Scanner|Statement)");
+    private static final Pattern IN_MEMORY_TYPE = Pattern.compile(
+        "(ByteArray|String|CharArray|Piped)\\w*|PrintStream|PrintWriter");
+    private static final Set<String> BOILERPLATE_METHODS = Set.of("equals", "hashCode", "toString");
+    private static final AtomicBoolean COMPILER_WARNED = new AtomicBoolean();
+
+    public enum Level { HIGH, NORMAL, LOW, SKIP }
+
+    /**
+     * Outcome of the triage of one file.
+     *
+     * @param score   Weighted sum of the signals found; higher means more likely to contain bugs
+     * @param reasons Human-readable signals behind the level
+     */
+    public record Verdict(Level level, int score, List<String> reasons) {}
+
+    private static class Signals {
+        boolean generated;
+        int logicMethods;
+        int fieldMismatches;
+        int lintWarnings;
+        final List<String> lintMessages = new ArrayList<>();
+        int unmanagedResources;
+        int returnNulls;
+        int nullChecks;
+        int maxComplexity;
+        String mostComplexMethod;
+        int churn;
+    }
+
+    /**
+     * Screens the files and returns a verdict for each of them. Files that cannot be parsed, or
+     * all files if no compiler is available, get a normal verdict so that they are still analyzed.
+     */
+    public static Map<Path, Verdict> screen(List<Path> files, Path projectRoot, boolean verbose) throws IOException {
+        JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+        if (compiler == null) {
+            if (!COMPILER_WARNED.getAndSet(true)) {
+                System.err.println("⚠️ No Java compiler available (run on a JDK, not a JRE) - files are analyzed without triage");
+            }
+            Map<Path, Verdict> verdicts = new HashMap<>();
+            for (Path file : files) {
+                verdicts.put(file, new Verdict(Level.NORMAL, 0, List.of("no Java compiler to screen it")));
+            }
+            return verdicts;
+        }
+        Map<Path, Signals> signals = new HashMap<>();
+        List<String> options = new ArrayList<>(LINT_OPTIONS);
+        String classpath = classpath(projectRoot);
+        if (!classpath.isEmpty()) {
+            options.add("-classpath");
+            options.add(classpath);
+        }
+
+        try (StandardJavaFileManager fileManager = compiler.getStandardFileManager(null, null, StandardCharsets.UTF_8)) {
+            // Attributing in chunks bounds the memory held by the compiler on large trees
+            for (int from = 0; from < files.size(); from += CHUNK_SIZE) {
+                List<Path> chunk = files.subList(from, Math.min(files.size(), from + CHUNK_SIZE));
+                screenChunk(compiler, fileManager, chunk, options, signals, verbose);
+            }
+        }
+
+        Map<Path, Integer> churn = BatchScheduler.gitChurn(projectRoot);
+        Map<Path, Verdict> verdicts = new HashMap<>();
+        for (Path file : files) {
+            Signals fileSignals = signals.get(file.toAbsolutePath().normalize());
+            if (fileSignals == null) {
+                verdicts.put(file, new Verdict(Level.NORMAL, 0, List.of("could not be parsed")));
+                continue;
+            }
+            fileSignals.churn = churn.getOrDefault(file.toAbsolutePath().normalize(), 0);
+            verdicts.put(file, judge(fileSignals));
+        }
+        return verdicts;
+    }
+
+    private static void screenChunk(JavaCompiler compiler, StandardJavaFileManager fileManager, List<Path> chunk,
+                                    List<String> options, Map<Path, Signals> signals, boolean verbose) throws IOException {
+        Map<Path, Signals> chunkSignals = new HashMap<>();
+        Iterable<? extends JavaFileObject> units = fileManager.getJavaFileObjectsFromPaths(chunk);
+        JavacTask task = (JavacTask) compiler.getTask(null, fileManager, diagnostic -> {
+            if ((diagnostic.getKind() == Diagnostic.Kind.WARNING || diagnostic.getKind() == Diagnostic.Kind.MANDATORY_WARNING)
+                && diagnostic.getSource() != null) {
+                Signals fileSignals = chunkSignals.computeIfAbsent(
+                    Path.of(diagnostic.getSource().toUri()).toAbsolutePath().normalize(), path -> new Signals());
+                fileSignals.lintWarnings++;
+                fileSignals.lintMessages.add("line " + diagnostic.getLineNumber() + ": "
+                    + diagnostic.getMessage(Locale.ROOT).lines().findFirst().orElse(""));
+            }
+        }, options, null, units);
+
+        for (CompilationUnitTree unit : task.parse()) {
+            Path path = Path.of(unit.getSourceFile().toUri()).toAbsolutePath().normalize();
+            Signals fileSignals = chunkSignals.computeIfAbsent(path, key -> new Signals());
+            Matcher header = LEADING_COMMENTS.matcher(unit.getSourceFile().getCharContent(true));
+            fileSignals.generated = header.lookingAt() && GENERATED_HEADER.matcher(header.group()).find();
+            new SignalScanner(fileSignals).scan(unit, null);
+        }
+        try {
+            // Attribution reports the lint warnings; errors from unresolved dependencies are expected and ignored
+            task.analyze();
+        } catch (RuntimeException e) {
+            if (verbose) {
+                System.out.println("[DEBUG] Triage could not attribute all files: " + e.getMessage());
+            }
+        }
+        signals.putAll(chunkSignals);
+    }
+
+    private static Verdict judge(Signals signals) {
+        if (signals.generated) {
+            return new Verdict(Level.SKIP, 0, List.of("generated code"));
+        }
+        if (signals.logicMethods == 0 && signals.lintWarnings == 0 && signals.unmanagedResources == 0) {
+            if (signals.fieldMismatches > 0) {
+                // A setter or constructor storing a parameter in the wrong field is a bug without any other signal
+                return new Verdict(Level.LOW, 0, List.of("only accessors, but " + signals.fieldMismatches
+                    + " parameter(s) assigned to a differently named field"));
+            }
+            return new Verdict(Level.SKIP, 0, List.of("no logic: only fields, accessors, constructors or declarations"));
+        }
+
+        List<String> reasons = new ArrayList<>();
+        int score = 0;
+        if (signals.lintWarnings > 0) {
+            score += 3 * signals.lintWarnings;
+            reasons.add(signals.lintWarnings + " lint warning(s), e.g. "
+                + signals.lintMessages.stream().limit(MAX_LINT_REASONS).collect(Collectors.joining("; ")));
+        }
+        if (signals.unmanagedResources > 0) {
+            score += 4 * signals.unmanagedResources;
+            reasons.add(signals.unmanagedResources + " resource(s) opened outside try-with-resources");
+        }
+        if (signals.returnNulls > 0) {
+            score += signals.returnNulls;
+            reasons.add(signals.returnNulls + " return null");
+        }
+        if (signals.nullChecks > 0) {
+            score += signals.nullChecks / 2;
+            reasons.add(signals.nullChecks + " null comparison(s)");
+        }
+        if (signals.maxComplexity > COMPLEXITY_THRESHOLD) {
+            score += signals.maxComplexity - COMPLEXITY_THRESHOLD;
+            reasons.add("complexity " + signals.maxComplexity + " in " + signals.mostComplexMethod + "()");
+        }
+        if (signals.churn > 0) {
+            score += 2 * signals.churn;
+            reasons.add(signals.churn + " commit(s) in the last 90 days");
+        }
+
+        if (score >= HIGH_PRIORITY_SCORE) {
+            return new Verdict(Level.HIGH, score, reasons);
+        }
+        if (score == 0 && signals.maxComplexity <= LOW_COMPLEXITY) {
+            reasons.add("simple code without warnings (max complexity " + signals.maxComplexity + ")");
+            return new Verdict(Level.LOW, score, reasons);
+        }
+        return new Verdict(Level.NORMAL, score, reasons);
+    }
+
+    /**
+     * Returns the compiled classes and the cached dependency classpath of the project, if any,
+     * so that attribution resolves project types. Nothing is resolved or built here.
+     */
+    private static String classpath(Path projectRoot) throws IOException {
+        List<String> entries = new ArrayList<>();
+        for (String dir : List.of("target/classes", "build/classes/java/main")) {
+            if (Files.isDirectory(projectRoot.resolve(dir))) {
+                entries.add(projectRoot.resolve(dir).toString());
+            }
+        }
+        Path cache = projectRoot.resolve(".assistant/classpath.txt");
+        if (Files.exists(cache)) {
+            String cached = Files.readString(cache).trim();
+            if (!cached.isEmpty()) {
+                entries.add(cached);
+            }
+        }
+        return String.join(File.pathSeparator, entries);
+    }
+
+    /**
+     * Collects the tree-based signals of one compilation unit. Complexity is the cyclomatic
+     * complexity of each method and initializer, lambdas and local classes included.
+     */
+    private static class SignalScanner extends TreeScanner<Void, Void> {
+        private final Signals signals;
+        private int complexity;
+        private int lambdas;
+        private boolean inTryResources;
+
+        SignalScanner(Signals signals) {
+            this.signals = signals;
+        }
+
+        @Override
+        public Void visitClass(ClassTree node, Void unused) {
+            for (AnnotationTree annotation : node.getModifiers().getAnnotations()) {
+                if (annotation.getAnnotationType().toString().endsWith("Generated")) {
+                    signals.generated = true;
+                }
+            }
+            for (Tree member : node.getMembers()) {
+                if (member instanceof BlockTree block) {
+                    // A static or instance initializer holds logic like a method does
+                    String name = block.isStatic() ? "<clinit>" : "<init>";
+                    measure(name, () -> scan(block, unused),
+                        () -> !block.getStatements().stream().allMatch(SignalScanner::isAccessor));
+                } else if (member instanceof VariableTree field && field.getInitializer() != null) {
+                    int outerLambdas = lambdas;
+                    lambdas = 0;
+                    measure(field.getName().toString(), () -> scan(field, unused), () -> lambdas > 0);
+                    lambdas = outerLambdas;
+                } else {
+                    scan(member, unused);
+                }
+            }
+            return null;
+        }
+
+        @Override
+        public Void visitMethod(MethodTree node, Void unused) {
+            // Generated-looking equals, hashCode and toString are not logic, but hand-written branching ones are
+            boolean boilerplate = BOILERPLATE_METHODS.contains(node.getName().toString());
+            measure(node.getName().toString(), () -> super.visitMethod(node, unused),
+                () -> node.getBody() != null && !boilerplate
+                    && !node.getBody().getStatements().stream().allMatch(SignalScanner::isAccessor));
+            countFieldMismatches(node);
+            return null;
+        }
+
+        /**
+         * Counts statements assigning a parameter to a field whose name does not resemble it, such
+         * as {@code this.min = max}, which would otherwise pass as a plain accessor.
+         */
+        private void countFieldMismatches(MethodTree node) {
+            if (node.getBody() == null) {
+                return;
+            }
+            Set<String> parameters = node.getParameters().stream()
+                .map(parameter -> parameter.getName().toString())
+                .collect(Collectors.toSet());
+            for (StatementTree statement : node.getBody().getStatements()) {
+                if (statement instanceof ExpressionStatementTree expression
+                    && expression.getExpression() instanceof AssignmentTree assignment
+                    && assignment.getExpression() instanceof IdentifierTree value
+                    && parameters.contains(value.getName().toString())) {
+                    String field = assignment.getVariable() instanceof MemberSelectTree select
+                        ? select.getIdentifier().toString()
+                        : assignment.getVariable().toString();
+                    String parameter = value.getName().toString().toLowerCase(Locale.ROOT);
+                    field = field.toLowerCase(Locale.ROOT);
+                    // Prefixed names such as newName or aName still match their field
+                    if (!field.contains(parameter) && !parameter.contains(field)) {
+                        signals.fieldMismatches++;
+                    }
+                }
+            }
+        }
+
+        /**
+         * Scans a method, initializer block or field initializer, counting it as logic if it
+         * branches or if the given check finds it does more than move values.
+         */
+        private void measure(String name, Runnable scan, BooleanSupplier hasLogic) {
+            int outer = complexity;
+            complexity = 1;
+            scan.run();
+            if (complexity > 1 || hasLogic.getAsBoolean()) {
+                signals.logicMethods++;
+            }
+            if (complexity > signals.maxComplexity) {
+                signals.maxComplexity = complexity;
+                signals.mostComplexMethod = name;
+            }
+            complexity = outer;
+        }
+
+        @Override
+        public Void visitLambdaExpression(LambdaExpressionTree node, Void unused) {
+            lambdas++;
+            return super.visitLambdaExpression(node, unused);
+        }
+
+        /**
+         * Whether the statement only moves a value: returns a name or literal, assigns one to
+         * a field, or delegates to a super or this constructor.
+         */
+        private static boolean isAccessor(StatementTree statement) {
+            if (statement instanceof ReturnTree returnTree) {
+                return returnTree.getExpression() == null || isPlainValue(returnTree.getExpression());
+            }
+            if (statement instanceof ExpressionStatementTree expression) {
+                if (expression.getExpression() instanceof AssignmentTree assignment) {
+                    return isPlainValue(assignment.getVariable()) && isPlainValue(assignment.getExpression());
+                }
+                if (expression.getExpression() instanceof MethodInvocationTree invocation) {
+                    String name = invocation.getMethodSelect().toString();
+                    return (name.equals("super") || name.equals("this"))
+                        && invocation.getArguments().stream().allMatch(SignalScanner::isPlainValue);
+                }
+            }
+            return false;
+        }
+
+        private static boolean isPlainValue(ExpressionTree expression) {
+            return expression instanceof IdentifierTree
+                || expression instanceof LiteralTree
+                || (expression instanceof MemberSelectTree select && select.getExpression() instanceof IdentifierTree);
+        }
+
+        @Override
+        public Void visitTry(TryTree node, Void unused) {
+            boolean outer = inTryResources;
+            inTryResources = true;
+            scan(node.getResources(), unused);
+            inTryResources = outer;
+            scan(node.getBlock(), unused);
+            scan(node.getCatches(), unused);
+            scan(node.getFinallyBlock(), unused);
+            return null;
+        }
+
+        @Override
+        public Void visitNewClass(NewClassTree node, Void unused) {
+            String type = node.getIdentifier().toString();
+            type = type.substring(type.lastIndexOf('.') + 1).replaceAll("<.*", "");
+            if (!inTryResources && RESOURCE_TYPE.matcher(type).matches() && !IN_MEMORY_TYPE.matcher(type).matches()) {
+                signals.unmanagedResources++;
+            }
+            return super.visitNewClass(node, unused);
+        }
+
+        @Override
+        public Void visitMethodInvocation(MethodInvocationTree node, Void unused) {
+            String name = node.getMethodSelect().toString();
+            if (!inTryResources && (name.endsWith(".getConnection") || name.endsWith(".newInputStream")
+                || name.endsWith(".newOutputStream") || name.endsWith(".newBufferedReader")
+                || name.endsWith(".newBufferedWriter"))) {
+                signals.unmanagedResources++;
+            }
+            return super.visitMethodInvocation(node, unused);
+        }
+
+        @Override
+        public Void visitReturn(ReturnTree node, Void unused) {
+            if (node.getExpression() != null && node.getExpression().getKind() == Tree.Kind.NULL_LITERAL) {
+                signals.returnNulls++;
+            }
+            return super.visitReturn(node, unused);
+        }
+
+        @Override
+        public Void visitBinary(BinaryTree node, Void unused) {
+            switch (node.getKind()) {
+                case CONDITIONAL_AND, CONDITIONAL_OR -> complexity++;
+                case EQUAL_TO, NOT_EQUAL_TO -> {
+                    if (isNull(node.getLeftOperand()) || isNull(node.getRightOperand())) {
+                        signals.nullChecks++;
+                    }
+                }
+                default -> { }
+            }
+            return super.visitBinary(node, unused);
+        }
+
+        private static boolean isNull(Tree tree) {
+            return tree instanceof LiteralTree literal && literal.getKind() == Tree.Kind.NULL_LITERAL;
+        }
+
+        @Override
+        public Void visitIf(IfTree node, Void unused) {
+            complexity++;
+            return super.visitIf(node, unused);
+        }
+
+        @Override
+        public Void visitForLoop(ForLoopTree node, Void unused) {
+            complexity++;
+            return super.visitForLoop(node, unused);
+        }
+
+        @Override
+        public Void visitEnhancedForLoop(EnhancedForLoopTree node, Void unused) {
+            complexity++;
+            return super.visitEnhancedForLoop(node, unused);
+        }
+
+        @Override
+        public Void visitWhileLoop(WhileLoopTree node, Void unused) {
+            complexity++;
+            return super.visitWhileLoop(node, unused);
+        }
+
+        @Override
+        public Void visitDoWhileLoop(DoWhileLoopTree node, Void unused) {
+            complexity++;
+            return super.visitDoWhileLoop(node, unused);
+        }
+
+        @Override
+        public Void visitCase(CaseTree node, Void unused) {
+            if (!node.getExpressions().isEmpty()) {
+                complexity++;
+            }
+            return super.visitCase(node, unused);
+        }
+
+        @Override
+        public Void visitCatch(CatchTree node, Void unused) {
+            complexity++;
+            return super.visitCatch(node, unused);
+        }
+
+        @Override
+        public Void visitConditionalExpression(ConditionalExpressionTree node, Void unused) {
+            complexity++;
+            return super.visitConditionalExpression(node, unused);
+        }
+    }
+}
@@ -0,0 +1,140 @@
+package com.examensarbete;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Token usage of the current run, aggregated per file and per provider. Every successful
+ * request made through {@link AIClient} is recorded here, attributed to the file the
+ * calling thread is working on. The ledger also keeps a one-minute window of spend for
+ * pacing batch runs, and appends the run totals to {@code .assistant/usage.jsonl}.
+ */
+public class UsageLedger {
+    private static final ObjectMapper JSON_MAPPER = new ObjectMapper();
+    private static final String USAGE_LOG = ".assistant/usage.jsonl";
+    private static final long WINDOW_MILLIS = 60_000;
+    private static final UsageLedger GLOBAL = new UsageLedger();
+    private static final ThreadLocal<Path> CURRENT_FILE = new ThreadLocal<>();
+
+    private final String runId = Instant.now().toString();
+    private final Map<String, TokenUsage> byFile = new TreeMap<>();
+    private final Map<String, TokenUsage> byProvider = new TreeMap<>();
+    private final Deque<long[]> window = new ArrayDeque<>();
+    private TokenUsage total = TokenUsage.NONE;
+    private int requests;
+
+    public static UsageLedger global() {
+        return GLOBAL;
+    }
+
+    /**
+     * Attributes the requests made by the current thread to the file, or to no file if null.
+     */
+    public static void setCurrentFile(Path file) {
+        if (file == null) {
+            CURRENT_FILE.remove();
+        } else {
+            CURRENT_FILE.set(file);
+        }
+    }
+
+    public synchronized void record(String provider, TokenUsage usage) {
+        Path file = CURRENT_FILE.get();
+        String fileKey = file != null ? file.toString() : "-";
+        byFile.merge(fileKey, usage, TokenUsage::plus);
+        byProvider.merge(provider, usage, TokenUsage::plus);
+        total = total.plus(usage);
+        requests++;
+        window.addLast(new long[] {System.currentTimeMillis(), usage.totalTokens()});
+        notifyAll();
+    }
+
+    public synchronized TokenUsage total() {
+        return total;
+    }
+
+    public synchronized int requests() {
+        return requests;
+    }
+
+    public synchronized TokenUsage forFile(Path file) {
+        return byFile.getOrDefault(file.toString(), TokenUsage.NONE);
+    }
+
+    /**
+     * Returns the tokens spent during the last minute.
+     */
+    public synchronized long tokensInLastMinute() {
+        long cutoff = System.currentTimeMillis() - WINDOW_MILLIS;
+        while (!window.isEmpty() && window.peekFirst()[0] < cutoff) {
+            window.removeFirst();
+        }
+        return window.stream().mapToLong(entry -> entry[1]).sum();
+    }
+
+    /**
+     * Returns the time in milliseconds until the oldest spend leaves the one-minute window, or 0 if it is empty.
+     */
+    public synchronized long millisUntilWindowShrinks() {
+        tokensInLastMinute();
+        return window.isEmpty() ? 0 : Math.max(1, window.peekFirst()[0] + WINDOW_MILLIS - System.currentTimeMillis());
+    }
+
+    public synchronized void printSummary() {
+        if (requests == 0) {
+            return;
+        }
+        System.out.println("\n📊 TOKENFÖRBRUKNING (" + requests + " förfrågningar)");
+        byProvider.forEach((provider, usage) -> System.out.println("   " + provider + ": " + usage));
+        if (byFile.size() > 1) {
+            byFile.entrySet().stream()
+                .sorted((a, b) -> Long.compare(b.getValue().totalTokens(), a.getValue().totalTokens()))
+                .limit(10)
+                .forEach(entry -> System.out.println("   " + entry.getKey() + ": " + entry.getValue().totalTokens()));
+        }
+        System.out.println("   Totalt: " + total);
+    }
+
+    /**
+     * Appends one line per file and provider of this run to the project's usage log.
+     */
+    public synchronized void append(Path projectRoot) throws IOException {
+        if (requests == 0) {
+            return;
+        }
+        StringBuilder lines = new StringBuilder();
+        for (Map.Entry<String, TokenUsage> entry : byFile.entrySet()) {
+            lines.append(JSON_MAPPER.writeValueAsString(line("file", entry.getKey(), entry.getValue()))).append('\n');
+        }
+        for (Map.Entry<String, TokenUsage> entry : byProvider.entrySet()) {
+            lines.append(JSON_MAPPER.writeValueAsString(line("provider", entry.getKey(), entry.getValue()))).append('\n');
+        }
+        lines.append(JSON_MAPPER.writeValueAsString(line("run", runId, total))).append('\n');
+
+        Path log = projectRoot.resolve(USAGE_LOG);
+        Files.createDirectories(log.getParent());
+        Files.writeString(log, lines, StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+    }
+
+    private ObjectNode line(String scope, String key, TokenUsage usage) {
+        ObjectNode node = JSON_MAPPER.createObjectNode();
+        node.put("run", runId);
+        node.put("scope", scope);
+        node.put("key", key);
+        node.put("inputTokens", usage.inputTokens());
+        node.put("outputTokens", usage.outputTokens());
+        node.put("cacheReadTokens", usage.cacheReadTokens());
+        node.put("cacheWriteTokens", usage.cacheWriteTokens());
+        return node;
+    }
+}
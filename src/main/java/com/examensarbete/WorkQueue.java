@@ -0,0 +1,211 @@
+package com.examensarbete;
+
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Durable state of a batch run, so that an interrupted sweep can be resumed without repeating
+ * completed requests. Every state change of a file is appended to {@code .assistant/queue.log}
+ * and synced; every {@value #CHECKPOINT_INTERVAL} changes the whole state is written to
+ * {@code .assistant/queue.checkpoint.json} and the log is truncated. Loading replays the log
+ * on top of the checkpoint, so a crash between the two steps loses nothing.
+ */
+public class WorkQueue implements Closeable {
+    private static final ObjectMapper JSON_MAPPER = new ObjectMapper()
+        .configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+    private static final String QUEUE_LOG = ".assistant/queue.log";
+    private static final String CHECKPOINT = ".assistant/queue.checkpoint.json";
+    private static final int CHECKPOINT_INTERVAL = 100;
+    private static final long BASE_BACKOFF_MILLIS = 2000;
+    private static final long MAX_BACKOFF_MILLIS = 60_000;
+    static final int MAX_ATTEMPTS = 3;
+
+    public enum State { PENDING, IN_FLIGHT, DONE, FAILED }
+
+    private final Path logFile;
+    private final Path checkpointFile;
+    private final Checkpoint state;
+    private final FileChannel log;
+    private int recordsSinceCheckpoint;
+
+    private WorkQueue(Path projectRoot, Checkpoint state) throws IOException {
+        this.logFile = projectRoot.resolve(QUEUE_LOG);
+        this.checkpointFile = projectRoot.resolve(CHECKPOINT);
+        this.state = state;
+        Files.createDirectories(logFile.getParent());
+        this.log = FileChannel.open(logFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+    }
+
+    /**
+     * Opens the queue for a run over the directory. With resume, the stored state of a run over
+     * the same directory is kept; otherwise the queue starts over. Files not yet in the queue
+     * are added as pending.
+     */
+    public static WorkQueue open(Path projectRoot, Path dir, List<Path> files, boolean resume) throws IOException {
+        Checkpoint state = resume ? load(projectRoot) : null;
+        if (resume && state != null && !dir.toString().equals(state.dir)) {
+            System.out.println("⚠️ Den sparade kön gäller " + state.dir + " - börjar om från början.");
+            state = null;
+        } else if (resume && state == null) {
+            System.out.println("⚠️ Ingen sparad kö att återuppta - börjar från början.");
+        }
+        if (state == null) {
+            Files.deleteIfExists(projectRoot.resolve(QUEUE_LOG));
+            Files.deleteIfExists(projectRoot.resolve(CHECKPOINT));
+            state = new Checkpoint();
+            state.dir = dir.toString();
+        }
+
+        WorkQueue queue = new WorkQueue(projectRoot, state);
+        if (state.items.isEmpty()) {
+            // Record the directory of a fresh queue before its first item
+            queue.checkpoint();
+        }
+        for (Path file : files) {
+            if (!state.items.containsKey(file.toString())) {
+                queue.update(file, State.PENDING, null);
+            }
+        }
+        return queue;
+    }
+
+    private static Checkpoint load(Path projectRoot) throws IOException {
+        Path checkpointFile = projectRoot.resolve(CHECKPOINT);
+        Path logFile = projectRoot.resolve(QUEUE_LOG);
+        if (!Files.exists(checkpointFile) && !Files.exists(logFile)) {
+            return null;
+        }
+        Checkpoint state = Files.exists(checkpointFile)
+            ? JSON_MAPPER.readValue(checkpointFile.toFile(), Checkpoint.class)
+            : new Checkpoint();
+        if (Files.exists(logFile)) {
+            for (String line : Files.readAllLines(logFile, StandardCharsets.UTF_8)) {
+                try {
+                    Item item = JSON_MAPPER.readValue(line, Item.class);
+                    state.items.put(item.file, item);
+                } catch (IOException e) {
+                    // A record torn by a crash is the last one written; the change it describes did not complete
+                }
+            }
+        }
+        return state;
+    }
+
+    /**
+     * Whether the file still has to be analyzed: it is not done and has attempts left.
+     * Files left in flight by an interrupted run count as pending.
+     */
+    public synchronized boolean isRemaining(Path file) {
+        Item item = state.items.get(file.toString());
+        return item == null
+            || item.state == State.PENDING
+            || item.state == State.IN_FLIGHT
+            || (item.state == State.FAILED && item.attempts < MAX_ATTEMPTS);
+    }
+
+    public synchronized long count(State itemState) {
+        return state.items.values().stream().filter(item -> item.state == itemState).count();
+    }
+
+    /**
+     * Returns how long to wait before the next attempt of a file that failed before.
+     */
+    public synchronized long backoffMillis(Path file) {
+        Item item = state.items.get(file.toString());
+        if (item == null || item.attempts == 0) {
+            return 0;
+        }
+        return Math.min(MAX_BACKOFF_MILLIS, BASE_BACKOFF_MILLIS << Math.min(item.attempts - 1, 10));
+    }
+
+    public void markInFlight(Path file) throws IOException {
+        update(file, State.IN_FLIGHT, null);
+    }
+
+    public void markDone(Path file) throws IOException {
+        update(file, State.DONE, null);
+    }
+
+    public void markFailed(Path file, String reason) throws IOException {
+        update(file, State.FAILED, reason);
+    }
+
+    private synchronized void update(Path file, State itemState, String reason) throws IOException {
+        Item item = state.items.computeIfAbsent(file.toString(), key -> {
+            Item created = new Item();
+            created.file = key;
+            return created;
+        });
+        item.state = itemState;
+        item.reason = reason;
+        if (itemState == State.FAILED) {
+            item.attempts++;
+        }
+
+        ByteBuffer record = ByteBuffer.wrap((JSON_MAPPER.writeValueAsString(item) + "\n").getBytes(StandardCharsets.UTF_8));
+        while (record.hasRemaining()) {
+            log.write(record);
+        }
+        log.force(false);
+        if (++recordsSinceCheckpoint >= CHECKPOINT_INTERVAL) {
+            checkpoint();
+        }
+    }
+
+    /**
+     * Writes the full state and truncates the log. Replaying a log over a newer checkpoint is
+     * harmless, so the order of the two steps only matters for the log size.
+     */
+    private synchronized void checkpoint() throws IOException {
+        PatchJournal.atomicWrite(checkpointFile, JSON_MAPPER.writeValueAsBytes(state));
+        log.truncate(0);
+        log.force(true);
+        recordsSinceCheckpoint = 0;
+    }
+
+    /**
+     * Returns the files that failed for good, with the reason of their last failure.
+     */
+    public synchronized List<String> failures() {
+        List<String> failures = new ArrayList<>();
+        for (Item item : state.items.values()) {
+            if (item.state == State.FAILED) {
+                failures.add(item.file + " (" + item.attempts + " försök): " + item.reason);
+            }
+        }
+        return failures;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        try {
+            checkpoint();
+        } finally {
+            log.close();
+        }
+    }
+
+    static class Checkpoint {
+        public String dir;
+        public Map<String, Item> items = new LinkedHashMap<>();
+    }
+
+    static class Item {
+        public String file;
+        public State state;
+        public int attempts;
+        public String reason;
+    }
+}